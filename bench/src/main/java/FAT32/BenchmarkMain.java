@@ -0,0 +1,16 @@
+package FAT32;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+//Entry point of benchmarks.jar. Takes the usual JMH arguments and always adds the gc profiler, so every result comes with
+//its allocation rate (gc.alloc.rate.norm is bytes allocated per operation).
+public class BenchmarkMain {
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
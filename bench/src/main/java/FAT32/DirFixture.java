@@ -0,0 +1,52 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.openjdk.jmh.annotations.*;
+
+//A generated image whose directories each hold dirWidth files, chained depth deep below the root, opened once per trial
+//with the shell's default options.
+@State(Scope.Benchmark)
+public class DirFixture {
+    @Param({"1", "8", "64"})
+    public int secPerClus;
+    @Param({"64", "4096"})
+    public int dirWidth;
+    @Param({"8"})
+    public int depth;
+
+    Path image;
+    Volume volume;
+    long rootCluster;
+    List<String> rootPath;
+    Dir rootDir;
+    String deepPath;
+    String[] names; //Of the files in the root.
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Files.createTempFile("fat32-dirs", ".img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of(
+            "sec-per-clus", String.valueOf(secPerClus),
+            "files", String.valueOf((long)dirWidth * (depth + 1)),
+            "dirs", String.valueOf(depth),
+            "depth", String.valueOf(Math.max(1, depth)),
+            "sizes", "100")));
+        volume = Volume.open(image.toString(), Map.of());
+        rootCluster = volume.getRootCluster();
+        rootPath = List.of(Volume.rootDirName);
+        rootDir = volume.getRootDir();
+        StringBuilder path = new StringBuilder();
+        for (int level = 1; level <= depth; level++) path.append(Volume.pathDelimiter).append(String.format("D%07X", level)); //One directory per level.
+        deepPath = path.length() == 0 ? Volume.rootDirName : path.toString();
+        names = new String[dirWidth];
+        for (int i = 0; i < dirWidth; i++) names[i] = String.format("F%07X.DAT", (long)i * (depth + 1)); //Files are dealt round-robin.
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        volume.close();
+        Files.deleteIfExists(image);
+    }
+}
@@ -0,0 +1,46 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.openjdk.jmh.annotations.*;
+
+//A generated image with one large file, laid out by one of the generator's fragmentation patterns.
+@State(Scope.Benchmark)
+public class FileFixture {
+    @Param({"1", "8", "64"})
+    public int secPerClus;
+    @Param({"16777216"})
+    public long fileSize;
+    @Param({"none", "gap:7"})
+    public String fragmentation;
+    @Param({Storage.RANDOM_ACCESS, Storage.MAPPED})
+    public String storage;
+
+    Path image;
+    Volume volume;
+    DirEntry file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Files.createTempFile("fat32-file", ".img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of(
+            "sec-per-clus", String.valueOf(secPerClus),
+            "files", "1",
+            "dirs", "0",
+            "sizes", String.valueOf(fileSize),
+            "fragmentation", fragmentation)));
+        volume = Volume.open(image.toString(), Map.of("storage", storage));
+        file = volume.getRootDir().entryWithName("F0000000.DAT");
+        byte[] content = volume.fileAsByteArray(file);
+        for (int i = 0; i < content.length; i += 4093) {
+            if (content[i] != ImageGenerator.patternByte(0, i)) throw new IllegalStateException("Fixture reads back wrong at byte " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        volume.close();
+        Files.deleteIfExists(image);
+    }
+}
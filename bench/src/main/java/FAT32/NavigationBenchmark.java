@@ -0,0 +1,46 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//Latency of opening an image and of the work behind ls, cd and stat.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NavigationBenchmark {
+    private int next; //Index of the next name stat looks up.
+
+    //Volume.open: BPB fields, FAT, caches and the root directory.
+    @Benchmark
+    public long startup(DirFixture fixture) throws IOException {
+        try (Volume volume = Volume.open(fixture.image.toString(), Map.of())) {
+            return volume.getRootCluster();
+        }
+    }
+
+    //Parses the root from its clusters, as cd does on arrival, and joins the names as ls prints them.
+    @Benchmark
+    public String ls(DirFixture fixture) throws IOException {
+        return fixture.volume.clusterToDir(fixture.rootCluster, new ArrayList<>(fixture.rootPath)).getNamesString();
+    }
+
+    //Resolves /D1/.../Dn from the root. Intermediate lookups hit the dentry cache after the first call.
+    @Benchmark
+    public boolean cd(DirFixture fixture) throws IOException {
+        return new Session(fixture.volume).cd(fixture.deepPath);
+    }
+
+    //Looks up a different file of the root each call and formats its entry.
+    @Benchmark
+    public String stat(DirFixture fixture) {
+        String name = fixture.names[next];
+        next = next + 1 == fixture.names.length ? 0 : next + 1;
+        if (!fixture.rootDir.contains(name)) throw new IllegalStateException(name + " is missing");
+        return fixture.rootDir.entryWithName(name).toString();
+    }
+}
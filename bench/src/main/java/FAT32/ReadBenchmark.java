@@ -0,0 +1,56 @@
+package FAT32;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//Read throughput. Besides ops/s, each benchmark reports the bytes it read, which JMH turns into a bytes/s rate.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+    private static final int CHUNK = 4096; //Bytes per call of the read command.
+
+    private long offset; //Of the next chunk.
+    private WritableByteChannel sink = Channels.newChannel(OutputStream.nullOutputStream());
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    //The whole file into one array, as cat-style reads do.
+    @Benchmark
+    public byte[] readWhole(FileFixture fixture, Bytes counter) throws IOException {
+        byte[] file = fixture.volume.fileAsByteArray(fixture.file);
+        counter.bytes += file.length;
+        return file;
+    }
+
+    //The read command: CHUNK bytes at a time, front to back, wrapping at the end of the file.
+    @Benchmark
+    public byte[] readChunk(FileFixture fixture, Bytes counter) throws IOException {
+        if (offset + CHUNK > fixture.fileSize) offset = 0;
+        byte[] chunk = fixture.volume.fileAsByteArray(fixture.file, offset, CHUNK);
+        offset += CHUNK;
+        counter.bytes += chunk.length;
+        return chunk;
+    }
+
+    //The get command: the file streamed an extent at a time.
+    @Benchmark
+    public long export(FileFixture fixture, Bytes counter) throws IOException {
+        long bytes = fixture.volume.exportFile(fixture.file, sink);
+        counter.bytes += bytes;
+        return bytes;
+    }
+}
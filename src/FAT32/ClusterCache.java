@@ -0,0 +1,243 @@
+package FAT32;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+
+//Shared cache of cluster buffers, under both directory parsing and file reads.
+//Cached buffers are never recycled: DirEntry views may keep pointing into them after they are evicted.
+//The cache is split into independently locked segments by cluster number, so concurrent readers rarely wait on each other.
+//Each segment evicts on its own, which approximates the policy over the whole cache.
+public abstract class ClusterCache {
+    protected static final String LRU = "lru";
+    protected static final String CLOCK = "clock";
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_CAPACITY = 64; //Small caches stay in one segment, where a single policy decides every eviction.
+
+    //Reads a cluster from storage on a miss.
+    public interface Loader {
+        ByteBuffer load(long clusterNumber) throws IOException;
+    }
+
+    protected int capacity; //In clusters.
+    protected int bytesPerCluster;
+    private boolean offHeap;
+    private Loader loader;
+    private Segment[] segments;
+    private int segmentMask;
+
+    public static ClusterCache create(String policy, long budgetBytes, int bytesPerCluster, boolean offHeap, Loader loader) {
+        int capacity = (int)Math.min(Integer.MAX_VALUE, budgetBytes / bytesPerCluster);
+        switch (policy) {
+            case LRU: return new Lru(capacity, bytesPerCluster, offHeap, loader);
+            case CLOCK: return new Clock(capacity, bytesPerCluster, offHeap, loader);
+            default: throw new IllegalArgumentException("Unknown eviction policy: " + policy + ". Expected " + LRU + " or " + CLOCK);
+        }
+    }
+
+    protected ClusterCache(int capacity, int bytesPerCluster, boolean offHeap, Loader loader) {
+        if (capacity < 1) throw new IllegalArgumentException("Cluster cache budget must hold at least one cluster of " + bytesPerCluster + " bytes");
+        this.capacity = capacity;
+        this.bytesPerCluster = bytesPerCluster;
+        this.offHeap = offHeap;
+        this.loader = loader;
+        segments = new Segment[Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, capacity / MIN_SEGMENT_CAPACITY)))];
+        segmentMask = segments.length - 1;
+        for (int i = 0; i < segments.length; i++) segments[i] = newSegment(capacity / segments.length + (i < capacity % segments.length ? 1 : 0));
+    }
+
+    //Consecutive clusters land in different segments, so one sequential reader spreads over all of them.
+    private Segment segmentFor(long clusterNumber) {return segments[(int)clusterNumber & segmentMask];}
+
+    //Read-only, LITTLE ENDIAN view of the cluster. Callers must only use absolute gets, or duplicate() it first.
+    public ByteBuffer get(long clusterNumber) throws IOException {
+        Segment segment = segmentFor(clusterNumber);
+        ByteBuffer buffer = segment.lookup(clusterNumber);
+        if (buffer != null) return buffer;
+        buffer = own(loader.load(clusterNumber)); //Outside the segment lock, so a slow read only holds up its own caller.
+        segment.insert(clusterNumber, buffer);
+        return buffer;
+    }
+
+    //Storage may hand out a view it still owns (a mapping), a slice of a longer read (the read-ahead reads runs of clusters),
+    //or a fresh copy of just the cluster. Only that copy can be kept as is: a kept slice would pin the whole run's array,
+    //and the byte budget would no longer hold.
+    private ByteBuffer own(ByteBuffer loaded) {
+        if (!offHeap && loaded.hasArray() && loaded.arrayOffset() == 0 && loaded.array().length == loaded.capacity()) {
+            return loaded.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer copy = offHeap ? ByteBuffer.allocateDirect(loaded.capacity()) : ByteBuffer.allocate(loaded.capacity());
+        copy.put(0, loaded, 0, loaded.capacity());
+        return copy.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //Does not count as a hit or a miss.
+    public boolean contains(long clusterNumber) {return segmentFor(clusterNumber).contains(clusterNumber);}
+
+    //Empties the cache after the image was written. Counters are kept.
+    public void clear() {
+        for (Segment segment : segments) segment.clear();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    protected abstract Segment newSegment(int capacity);
+
+    @Override
+    public String toString() {
+        long hits = 0, misses = 0, evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+            }
+        }
+        long lookups = hits + misses;
+        return "Cluster cache (" + getClass().getSimpleName().toLowerCase(Locale.ROOT) + (offHeap ? ", off-heap" : "") + "): "
+            + size() + "/" + capacity + " clusters of " + bytesPerCluster + " bytes in " + segments.length + " segments, "
+            + hits + " hits, " + misses + " misses, " + evictions + " evictions"
+            + (lookups == 0 ? "" : String.format(" (%.1f%% hit rate)", 100.0*hits/lookups));
+    }
+
+    //One independently locked part of the cache. Counters are guarded by the segment's lock.
+    protected abstract static class Segment {
+        protected int capacity;
+        protected long hits;
+        protected long misses;
+        protected long evictions;
+
+        protected Segment(int capacity) {this.capacity = capacity;}
+
+        //Counts a hit or a miss.
+        protected abstract ByteBuffer lookup(long clusterNumber);
+        //Counts an eviction if one is needed to make room.
+        protected abstract void insert(long clusterNumber, ByteBuffer buffer);
+        protected abstract boolean contains(long clusterNumber);
+        protected abstract int size();
+        protected abstract void clear();
+    }
+
+    //Evicts the least recently used cluster.
+    protected static class Lru extends ClusterCache {
+        public Lru(int capacity, int bytesPerCluster, boolean offHeap, Loader loader) {
+            super(capacity, bytesPerCluster, offHeap, loader);
+        }
+
+        @Override
+        protected Segment newSegment(int capacity) {return new LruSegment(capacity);}
+
+        private static class LruSegment extends Segment {
+            private LinkedHashMap<Long, ByteBuffer> clusters = new LinkedHashMap<>(16, 0.75f, true);
+
+            LruSegment(int capacity) {super(capacity);}
+
+            @Override
+            protected synchronized ByteBuffer lookup(long clusterNumber) {
+                ByteBuffer buffer = clusters.get(clusterNumber);
+                if (buffer == null) misses++;
+                else hits++;
+                return buffer;
+            }
+
+            @Override
+            protected synchronized void insert(long clusterNumber, ByteBuffer buffer) {
+                if (clusters.containsKey(clusterNumber)) return; //Loaded by another reader in the meantime.
+                if (clusters.size() >= capacity) {
+                    Iterator<Long> eldest = clusters.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    evictions++;
+                }
+                clusters.put(clusterNumber, buffer);
+            }
+
+            @Override
+            protected synchronized boolean contains(long clusterNumber) {return clusters.containsKey(clusterNumber);}
+
+            @Override
+            protected synchronized int size() {return clusters.size();}
+
+            @Override
+            protected synchronized void clear() {clusters.clear();}
+        }
+    }
+
+    //Second-chance eviction: a hit only sets a reference bit, so hits never reorder anything.
+    protected static class Clock extends ClusterCache {
+        public Clock(int capacity, int bytesPerCluster, boolean offHeap, Loader loader) {
+            super(capacity, bytesPerCluster, offHeap, loader);
+        }
+
+        @Override
+        protected Segment newSegment(int capacity) {return new ClockSegment(capacity);}
+
+        private static class ClockSegment extends Segment {
+            private long[] keys;
+            private ByteBuffer[] buffers;
+            private boolean[] referenced;
+            private Map<Long, Integer> slots = new HashMap<>();
+            private int used;
+            private int hand;
+
+            ClockSegment(int capacity) {
+                super(capacity);
+                keys = new long[capacity];
+                buffers = new ByteBuffer[capacity];
+                referenced = new boolean[capacity];
+            }
+
+            @Override
+            protected synchronized ByteBuffer lookup(long clusterNumber) {
+                Integer slot = slots.get(clusterNumber);
+                if (slot == null) {
+                    misses++;
+                    return null;
+                }
+                hits++;
+                referenced[slot] = true;
+                return buffers[slot];
+            }
+
+            @Override
+            protected synchronized void insert(long clusterNumber, ByteBuffer buffer) {
+                if (slots.containsKey(clusterNumber)) return; //Loaded by another reader in the meantime.
+                int slot;
+                if (used < capacity) {
+                    slot = used++;
+                } else {
+                    while (referenced[hand]) {
+                        referenced[hand] = false;
+                        hand = (hand + 1) % capacity;
+                    }
+                    slot = hand;
+                    hand = (hand + 1) % capacity;
+                    slots.remove(keys[slot]);
+                    evictions++;
+                }
+                keys[slot] = clusterNumber;
+                buffers[slot] = buffer;
+                referenced[slot] = false;
+                slots.put(clusterNumber, slot);
+            }
+
+            @Override
+            protected synchronized boolean contains(long clusterNumber) {return slots.containsKey(clusterNumber);}
+
+            @Override
+            protected synchronized int size() {return slots.size();}
+
+            @Override
+            protected synchronized void clear() {
+                slots.clear();
+                Arrays.fill(buffers, null);
+                Arrays.fill(referenced, false);
+                used = 0;
+                hand = 0;
+            }
+        }
+    }
+}
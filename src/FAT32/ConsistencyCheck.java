@@ -0,0 +1,243 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.*;
+
+//Read-only fsck. Walks the directory tree in fork/join tasks (one per directory) and follows every chain, claiming each cluster
+//in a shared bitmap. A chain that reaches a cluster that is already claimed loops on itself or is cross-linked with another chain.
+//Then the FAT is scanned in parallel for clusters in use that nothing claimed (lost chains), and every FAT copy is compared
+//with the first one. Memory is three bits per cluster, whatever the size of the tree.
+public class ConsistencyCheck {
+    private static final int MAX_REPORTED = 20; //Per kind of problem. The rest are only counted.
+    private static final long BAD_CLUSTER = 0x0FFFFFF7;
+
+    protected enum Problem {CROSS_LINK, CYCLE, BAD_LINK, SIZE_MISMATCH, LOST_CHAIN, FAT_COPY}
+
+    private Volume volume;
+    private FileAllocationTable FAT;
+    private long limit;
+    private AtomicLongArray owned; //Bit set once a chain has claimed the cluster.
+    private long[] lost; //In use in the FAT but not claimed. Written by word-aligned scan ranges only.
+    private AtomicLongArray referenced; //Some lost cluster links to it, so it does not start a lost chain.
+    private AtomicLong directories = new AtomicLong();
+    private AtomicLong files = new AtomicLong();
+    private AtomicLong clustersInUse = new AtomicLong();
+    private long lostClusters;
+    private Map<Problem, List<String>> reports = new EnumMap<>(Problem.class);
+    private Map<Problem, Long> counts = new EnumMap<>(Problem.class);
+
+    public static ConsistencyCheck run(Volume volume) throws IOException {
+        ConsistencyCheck check = new ConsistencyCheck(volume);
+        try {
+            check.walkTree();
+            check.findLostChains();
+            check.compareFATCopies();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return check;
+    }
+
+    private ConsistencyCheck(Volume volume) {
+        this.volume = volume;
+        this.FAT = volume.getFAT();
+        this.limit = volume.getClusterLimit();
+        int words = (int)((limit + 63) >>> 6);
+        owned = new AtomicLongArray(words);
+        lost = new long[words];
+        referenced = new AtomicLongArray(words);
+        for (Problem problem : Problem.values()) {
+            reports.put(problem, new ArrayList<>());
+            counts.put(problem, 0L);
+        }
+    }
+
+    public long getProblemCount() {
+        long total = 0;
+        for (long count : counts.values()) total += count;
+        return total;
+    }
+
+    private synchronized void report(Problem problem, String message) {
+        counts.put(problem, counts.get(problem) + 1);
+        List<String> messages = reports.get(problem);
+        if (messages.size() < MAX_REPORTED) messages.add(message); //Bounded, however broken the volume is.
+    }
+
+    private void walkTree() {
+        long rootCluster = volume.getRootCluster();
+        LongList rootClusters = new LongList();
+        if (walkChain(Volume.rootDirName, rootCluster, rootClusters) < 0) return;
+        directories.incrementAndGet();
+        ForkJoinPool.commonPool().invoke(new DirTask(Volume.rootDirName, rootClusters));
+    }
+
+    //Claims every cluster of the chain. Returns its length, or -1 if the chain is broken, after reporting why.
+    //The clusters are added to collect when it is not null.
+    private long walkChain(String path, long firstCluster, LongList collect) {
+        if (firstCluster < 2 || firstCluster >= limit) {
+            report(Problem.BAD_LINK, path + ": first cluster " + printHex(firstCluster) + " is outside the data region");
+            return -1;
+        }
+        try {
+            long length = 0;
+            for (long clusterNumber = firstCluster; ; ) {
+                if (!claim(clusterNumber)) {
+                    if (inChain(firstCluster, clusterNumber, length)) report(Problem.CYCLE, path + ": chain loops back to " + printHex(clusterNumber) + " after " + length + " clusters");
+                    else report(Problem.CROSS_LINK, path + ": cluster " + printHex(clusterNumber) + " also belongs to another chain");
+                    return -1;
+                }
+                length++;
+                clustersInUse.incrementAndGet();
+                if (collect != null) collect.add(clusterNumber);
+                long next = FAT.get(clusterNumber);
+                if (!continuesInFAT(next)) return length;
+                if (next < 2 || next >= limit) {
+                    report(Problem.BAD_LINK, path + ": cluster " + printHex(clusterNumber) + " links to " + printHex(next) + (next == BAD_CLUSTER ? " (bad cluster)" : ""));
+                    return -1;
+                }
+                clusterNumber = next;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean claim(long clusterNumber) {
+        long bit = 1L << clusterNumber;
+        return (owned.getAndAccumulate((int)(clusterNumber >>> 6), bit, (word, mask) -> word | mask) & bit) == 0;
+    }
+
+    //True if target is among the first length clusters of the chain. Only called once a chain has hit a claimed cluster.
+    private boolean inChain(long firstCluster, long target, long length) throws IOException {
+        long clusterNumber = firstCluster;
+        for (long i = 0; i < length; i++, clusterNumber = FAT.get(clusterNumber)) {
+            if (clusterNumber == target) return true;
+        }
+        return false;
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.equals(Volume.rootDirName) ? Volume.rootDirName + name : parent + Volume.pathDelimiter + name;
+    }
+
+    //Clusters in use that no entry reaches. A lost chain starts at a lost cluster no other lost cluster links to.
+    private void findLostChains() throws IOException {
+        FAT.scan(2, limit, (first, entries) -> {
+            for (int i = 0; i < entries.capacity(); i++) {
+                long value = entries.get(i) & FileAllocationTable.ENTRY_MASK;
+                long clusterNumber = first + i;
+                if (value == 0 || value == BAD_CLUSTER) continue;
+                int word = (int)(clusterNumber >>> 6);
+                if ((owned.get(word) & (1L << clusterNumber)) != 0) continue;
+                lost[word] |= 1L << clusterNumber;
+                if (value >= 2 && value < limit) referenced.getAndAccumulate((int)(value >>> 6), 1L << value, (bits, mask) -> bits | mask);
+            }
+        });
+        for (int word = 0; word < lost.length; word++) {
+            lostClusters += Long.bitCount(lost[word]);
+            long heads = lost[word] & ~referenced.get(word);
+            for (int bit = 0; heads != 0; bit++, heads >>>= 1) {
+                if ((heads & 1) != 0) report(Problem.LOST_CHAIN, printHex(((long)word << 6) + bit) + ": chain in use but not reachable from any entry");
+            }
+        }
+    }
+
+    private void compareFATCopies() throws IOException {
+        for (int copy = 1; copy < volume.BPB_NumFATS.getVal(); copy++) {
+            FileAllocationTable other = new FileAllocationTable(volume.getStorage(), volume.FATOffset + copy*volume.bytesPerFAT, volume.bytesPerFAT, 1);
+            AtomicLong differences = new AtomicLong();
+            AtomicLong firstDifference = new AtomicLong(Long.MAX_VALUE);
+            FAT.scan(0, FAT.size(), (first, mine) -> {
+                IntBuffer theirs = other.entries(first, mine.capacity());
+                for (int i = 0; i < mine.capacity(); i++) {
+                    if (mine.get(i) == theirs.get(i)) continue;
+                    differences.incrementAndGet();
+                    firstDifference.accumulateAndGet(first + i, Math::min);
+                }
+            });
+            if (differences.get() > 0) report(Problem.FAT_COPY, "FAT " + copy + ": " + differences.get() + " entries differ from FAT 0, the first at cluster " + printHex(firstDifference.get()));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Problem problem : Problem.values()) {
+            List<String> messages = reports.get(problem);
+            Collections.sort(messages); //Tasks finish in any order.
+            for (String message : messages) text.append(problem).append(' ').append(message).append('\n');
+            long unlisted = counts.get(problem) - messages.size();
+            if (unlisted > 0) text.append(problem).append(" ... and ").append(unlisted).append(" more\n");
+        }
+        text.append("Checked ").append(directories.get()).append(" directories and ").append(files.get()).append(" files, ")
+            .append(clustersInUse.get()).append(" clusters in use, ").append(lostClusters).append(" lost\n");
+        long problems = getProblemCount();
+        text.append(problems == 0 ? "No problems found" : problems + " problems found");
+        return text.toString();
+    }
+
+    private class DirTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private String path;
+        private LongList clusters; //The directory's chain, already claimed.
+
+        DirTask(String path, LongList clusters) {
+            this.path = path;
+            this.clusters = clusters;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirEntry> entries = new ArrayList<>();
+            try {
+                LongName longName = new LongName();
+                for (int i = 0; i < clusters.size(); i++) {
+                    if (!volume.scanClusterAsDir(clusters.get(i), longName, entry -> entries.add(entry.copy()))) break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            List<DirTask> subdirs = new ArrayList<>();
+            for (DirEntry entry : entries) {
+                String name = entry.getDIR_NameString();
+                if (name.equals(".") || name.equals("..")) continue;
+                String entryPath = childPath(path, entry.getDisplayName());
+                long firstCluster = entry.getNextClusterNumber();
+                if (entry.isDirectory()) {
+                    directories.incrementAndGet();
+                    if (firstCluster == 0) {
+                        report(Problem.BAD_LINK, entryPath + ": directory has no clusters");
+                        continue;
+                    }
+                    LongList dirClusters = new LongList();
+                    if (walkChain(entryPath, firstCluster, dirClusters) >= 0) subdirs.add(new DirTask(entryPath, dirClusters));
+                    continue;
+                }
+                files.incrementAndGet();
+                long expected = (entry.getFileSize() + volume.getBytesPerCluster() - 1) / volume.getBytesPerCluster();
+                long length = firstCluster == 0 ? 0 : walkChain(entryPath, firstCluster, null);
+                if (length >= 0 && length != expected) report(Problem.SIZE_MISMATCH, entryPath + ": DIR_FileSize=" + entry.getFileSize() + " needs " + expected + " clusters, chain has " + length);
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    //Growable long[], so directory chains are kept without boxing.
+    private static class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size*2);
+            values[size++] = value;
+        }
+
+        long get(int index) {return values[index];}
+        int size() {return size;}
+    }
+}
@@ -0,0 +1,76 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+
+//Bounded LRU for path resolution: (parent directory cluster, name) -> entry, or a cached "not found".
+public class DentryCache {
+    private static final DirEntry NOT_FOUND = new DirEntry(new byte[32]);
+
+    private Map<Key, DirEntry> dentries;
+    private int capacity;
+    private long hits;
+    private long misses;
+
+    private static final class Key {
+        final long parentCluster;
+        final String name;
+        Key(long parentCluster, String name) {this.parentCluster = parentCluster; this.name = name;}
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return parentCluster == other.parentCluster && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(parentCluster) * 31 + name.hashCode();
+        }
+    }
+
+    //Outcome of a lookup: cached tells whether the cache knew the answer, entry is null for a cached "not found".
+    public static final class Lookup {
+        public final boolean cached;
+        public final DirEntry entry;
+        Lookup(boolean cached, DirEntry entry) {this.cached = cached; this.entry = entry;}
+    }
+    private static final Lookup MISS = new Lookup(false, null);
+    private static final Lookup NEGATIVE = new Lookup(true, null);
+
+    public DentryCache(int capacity) {
+        this.capacity = capacity;
+        this.dentries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, DirEntry> eldest) {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    public synchronized Lookup lookup(long parentCluster, String name) {
+        DirEntry entry = dentries.get(new Key(parentCluster, name));
+        if (entry == null) {
+            misses++;
+            return MISS;
+        }
+        hits++;
+        return entry == NOT_FOUND ? NEGATIVE : new Lookup(true, entry);
+    }
+
+    //entry == null records that name does not exist in the parent.
+    public synchronized void put(long parentCluster, String name, DirEntry entry) {
+        dentries.put(new Key(parentCluster, name), entry == null ? NOT_FOUND : entry);
+    }
+
+    public synchronized void clear() {dentries.clear();}
+    public synchronized long getHits() {return hits;}
+    public synchronized long getMisses() {return misses;}
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "Dentry cache: " + dentries.size() + "/" + capacity + " entries, " + hits + " hits, " + misses + " misses"
+            + (lookups == 0 ? "" : String.format(" (%.1f%% hit rate)", 100.0*hits/lookups));
+    }
+}
@@ -0,0 +1,83 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+//Space used below a directory, summed over the whole subtree.
+//Every subdirectory is parsed in its own fork/join task, so large trees are walked on all cores.
+//Chains are walked without going through the extent cache, so a big walk does not flush it.
+//A corrupt tree may link back to an ancestor, so the tasks share a set of the directories already entered and enter each once.
+public class DiskUsage {
+    private long files;
+    private long directories;
+    private long logicalBytes; //Sum of DIR_FileSize.
+    private long allocatedClusters; //Clusters in the chains of every file and directory below, not counting the top directory.
+    private int bytesPerCluster;
+
+    public static DiskUsage of(Volume volume, long dirClusterNumber) throws IOException {
+        try {
+            if (dirClusterNumber == 0) dirClusterNumber = volume.getRootCluster(); //per MS spec pg. 25, references to root entry are uniquely 0
+            Set<Long> visited = ConcurrentHashMap.newKeySet();
+            visited.add(dirClusterNumber);
+            return ForkJoinPool.commonPool().invoke(new Task(volume, dirClusterNumber, visited));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public long getFiles() {return files;}
+    public long getDirectories() {return directories;}
+    public long getLogicalBytes() {return logicalBytes;}
+    public long getAllocatedClusters() {return allocatedClusters;}
+
+    private void add(DiskUsage other) {
+        files += other.files;
+        directories += other.directories;
+        logicalBytes += other.logicalBytes;
+        allocatedClusters += other.allocatedClusters;
+    }
+
+    @Override
+    public String toString() {
+        return (""
+        +files + " files, " + directories + " directories\n"
+        +"Logical size is " + logicalBytes + " bytes\n"
+        +"Allocated " + allocatedClusters + " clusters, " + allocatedClusters*bytesPerCluster + " bytes");
+    }
+
+    private static class Task extends RecursiveTask<DiskUsage> {
+        private static final long serialVersionUID = 1L;
+        private Volume volume;
+        private long clusterNumber;
+        private Set<Long> visited; //Shared by all tasks of one walk.
+
+        Task(Volume volume, long clusterNumber, Set<Long> visited) {this.volume = volume; this.clusterNumber = clusterNumber; this.visited = visited;}
+
+        @Override
+        protected DiskUsage compute() {
+            try {
+                DiskUsage usage = new DiskUsage();
+                usage.bytesPerCluster = volume.getBytesPerCluster();
+                List<Task> subdirs = new ArrayList<>();
+                for (DirEntry entry : volume.entriesAt(clusterNumber, false)) {
+                    String name = entry.getDIR_NameString();
+                    if (name.equals(".") || name.equals("..")) continue;
+                    if (entry.getNextClusterNumber() != 0) usage.allocatedClusters += volume.chainLength(entry.getNextClusterNumber());
+                    if (entry.isDirectory()) {
+                        usage.directories++;
+                        long firstCluster = entry.getNextClusterNumber();
+                        if (firstCluster != 0 && visited.add(firstCluster)) subdirs.add(new Task(volume, firstCluster, visited));
+                    } else {
+                        usage.files++;
+                        usage.logicalBytes += entry.getFileSize();
+                    }
+                }
+                for (Task subdir : invokeAll(subdirs)) usage.add(subdir.join());
+                return usage;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
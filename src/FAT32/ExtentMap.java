@@ -0,0 +1,124 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.io.*;
+
+//A cluster chain compressed into extents (runs of contiguous clusters), built once by walking the FAT.
+//Mapping a cluster index within the chain to a cluster number is then a binary search instead of a chain walk.
+public class ExtentMap {
+    private long firstCluster;
+    private long[] starts; //First cluster number of each extent.
+    private long[] firstIndices; //Index within the chain of each extent's first cluster, ascending from 0.
+    private int extentCount;
+    private long clusterCount;
+
+    public ExtentMap(FileAllocationTable FAT, long firstCluster) throws IOException {
+        this.firstCluster = firstCluster;
+        starts = new long[4];
+        firstIndices = new long[4];
+        long clusterNumber = firstCluster;
+        long previous = -2;
+        while (continuesInFAT(clusterNumber)) {
+            if (clusterCount > FAT.size()) throw new IOException("Cluster chain starting at " + printHex(firstCluster) + " loops");
+            if (clusterNumber != previous + 1) addExtent(clusterNumber);
+            clusterCount++;
+            previous = clusterNumber;
+            clusterNumber = FAT.get(clusterNumber);
+        }
+    }
+
+    //Rebuilt from stored extents, without touching the FAT.
+    public ExtentMap(long firstCluster, long[] starts, long[] lengths) {
+        this.firstCluster = firstCluster;
+        this.starts = starts;
+        this.firstIndices = new long[starts.length];
+        this.extentCount = starts.length;
+        for (int extent = 0; extent < extentCount; extent++) {
+            firstIndices[extent] = clusterCount;
+            clusterCount += lengths[extent];
+        }
+    }
+
+    private void addExtent(long clusterNumber) {
+        if (extentCount == starts.length) {
+            starts = Arrays.copyOf(starts, extentCount*2);
+            firstIndices = Arrays.copyOf(firstIndices, extentCount*2);
+        }
+        starts[extentCount] = clusterNumber;
+        firstIndices[extentCount] = clusterCount;
+        extentCount++;
+    }
+
+    public long getFirstCluster() {return firstCluster;}
+    public int getExtentCount() {return extentCount;}
+    public long getClusterCount() {return clusterCount;}
+    public long getStart(int extent) {return starts[extent];}
+    public long getLength(int extent) {
+        long end = extent + 1 < extentCount ? firstIndices[extent + 1] : clusterCount;
+        return end - firstIndices[extent];
+    }
+
+    //Extent holding the clusterIndex'th cluster of the chain, or -1 if the chain is shorter than that.
+    public int extentOf(long clusterIndex) {
+        if (clusterIndex < 0 || clusterIndex >= clusterCount) return -1;
+        int low = 0, high = extentCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstIndices[mid] <= clusterIndex) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    //Cluster number of the clusterIndex'th cluster of the chain, or -1 if the chain is shorter than that.
+    public long clusterAt(long clusterIndex) {
+        int extent = extentOf(clusterIndex);
+        if (extent < 0) return -1;
+        return starts[extent] + (clusterIndex - firstIndices[extent]);
+    }
+
+    //Bounded LRU of extent maps keyed by first cluster.
+    protected static class Cache {
+        private Volume volume;
+        private Map<Long, ExtentMap> maps;
+        private int capacity;
+
+        public Cache(Volume volume, int capacity) {
+            this.volume = volume;
+            this.capacity = capacity;
+            this.maps = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ExtentMap> eldest) {
+                    return size() > Cache.this.capacity;
+                }
+            };
+        }
+
+        //A miss walks the FAT outside the lock, so concurrent readers of other chains are not held up by it.
+        public ExtentMap get(long firstCluster) throws IOException {
+            ExtentMap map;
+            synchronized (this) {map = maps.get(firstCluster);}
+            if (map != null) return map;
+            SidecarIndex index = volume.getSidecarIndex();
+            if (index != null) map = index.extentsOf(firstCluster);
+            if (map == null) map = new ExtentMap(volume.getFAT(), firstCluster);
+            synchronized (this) {
+                ExtentMap raced = maps.putIfAbsent(firstCluster, map);
+                return raced == null ? map : raced;
+            }
+        }
+
+        //As get, but a miss is not kept.
+        public ExtentMap peek(long firstCluster) throws IOException {
+            ExtentMap map;
+            synchronized (this) {map = maps.get(firstCluster);}
+            if (map != null) return map;
+            SidecarIndex index = volume.getSidecarIndex();
+            if (index != null) map = index.extentsOf(firstCluster);
+            return map != null ? map : new ExtentMap(volume.getFAT(), firstCluster);
+        }
+
+        public synchronized void clear() {maps.clear();}
+        public synchronized int size() {return maps.size();}
+    }
+}
@@ -0,0 +1,177 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+//Copies a subtree of the image to the host (extract). The tree is walked first, creating every host directory and (empty) host file,
+//and every file's extents are cut into pieces of at most 4MB. The pieces are then sorted by their offset in the image and handed out
+//in that order to a pool of workers, each streaming its piece into its file at the piece's offset. However the files are laid out,
+//the image is read as one forward sweep with a few reads in flight, instead of seeking back and forth file by file.
+//A file that cannot be read (a broken chain) is reported and left short, and the rest are still extracted. Nothing is ever
+//written outside the host directory, whatever names the image holds.
+public class Extraction {
+    private static final long PIECE_BYTES = 4L << 20;
+
+    private Volume volume;
+    private List<Path> hostFiles = new ArrayList<>();
+    private List<Piece> pieces = new ArrayList<>();
+    private long files;
+    private long directories;
+    private long bytes;
+    private Map<String, String> failures = new ConcurrentSkipListMap<>(); //Host path (or entry) -> what went wrong.
+
+    //One contiguous part of a file, read with one transfer.
+    private static class Piece {
+        final long imageOffset;
+        final int file; //Index into hostFiles.
+        final long fileOffset;
+        final long length;
+        Piece(long imageOffset, int file, long fileOffset, long length) {this.imageOffset = imageOffset; this.file = file; this.fileOffset = fileOffset; this.length = length;}
+    }
+
+    //Extracts entries (a directory's entries, or a single file) and everything below them into hostDir, which is created if missing.
+    public static Extraction run(Volume volume, List<DirEntry> entries, Path hostDir, int threads) throws IOException {
+        Extraction extraction = new Extraction(volume);
+        extraction.walk(entries, hostDir);
+        extraction.copyPieces(threads);
+        return extraction;
+    }
+
+    private Extraction(Volume volume) {this.volume = volume;}
+
+    public long getFiles() {return files;}
+    public long getDirectories() {return directories;}
+    public long getBytes() {return bytes;}
+    public int getFailureCount() {return failures.size();}
+
+    //Breadth first, as Fragmentation walks. A corrupt tree may link back to an ancestor, so every directory is entered once.
+    private void walk(List<DirEntry> top, Path hostDir) throws IOException {
+        Path root = hostDir.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        List<List<DirEntry>> dirEntries = new ArrayList<>();
+        List<Path> dirHostPaths = new ArrayList<>();
+        Set<Long> visited = new HashSet<>();
+        dirEntries.add(top);
+        dirHostPaths.add(root);
+        for (int dir = 0; dir < dirEntries.size(); dir++) {
+            for (DirEntry entry : dirEntries.get(dir)) {
+                String name = entry.getDIR_NameString();
+                if (name.equals(".") || name.equals("..")) continue;
+                Path host = hostPath(dirHostPaths.get(dir), entry);
+                if (host == null || !host.startsWith(root) || host.equals(root)) {
+                    failures.put(dirHostPaths.get(dir).resolve("?") + " (" + entry.getDisplayName() + ")", "Skipped, the name cannot be used on the host");
+                    continue;
+                }
+                long firstCluster = entry.getNextClusterNumber();
+                if (!entry.isDirectory()) {
+                    addFile(entry, host);
+                    continue;
+                }
+                Files.createDirectories(host);
+                directories++;
+                if (firstCluster != 0 && visited.add(firstCluster)) {
+                    dirEntries.add(volume.entriesAt(firstCluster, false)); //Kept out of the extent cache.
+                    dirHostPaths.add(host);
+                }
+            }
+            dirEntries.set(dir, null); //Let go of each directory once its entries are handled.
+        }
+    }
+
+    //Where the entry goes below parent: under its long name, or its 8.3 name when the long name cannot be a host file name.
+    //null when neither can.
+    private static Path hostPath(Path parent, DirEntry entry) {
+        for (String name : new String[] {entry.getDisplayName(), entry.getDIR_NameString()}) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('\0') >= 0 || name.contains("/")
+                || name.contains(parent.getFileSystem().getSeparator())) continue;
+            try {
+                return parent.resolve(name).normalize();
+            } catch (InvalidPathException e) {
+                //Not a name on this host, try the next.
+            }
+        }
+        return null;
+    }
+
+    private void addFile(DirEntry entry, Path host) throws IOException {
+        Files.newByteChannel(host, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+        files++;
+        long remaining = entry.getFileSize();
+        if (remaining == 0) return;
+        ExtentMap extents;
+        try {
+            extents = volume.getExtentCache().get(entry.getNextClusterNumber());
+        } catch (IOException e) {
+            failures.put(host.toString(), e.getMessage());
+            return;
+        }
+        int file = hostFiles.size();
+        hostFiles.add(host);
+        long fileOffset = 0;
+        for (int extent = 0; extent < extents.getExtentCount() && remaining > 0; extent++) {
+            long imageOffset = volume.clusterOffset(extents.getStart(extent));
+            long extentBytes = Math.min(remaining, extents.getLength(extent) * volume.getBytesPerCluster());
+            for (long done = 0; done < extentBytes; done += PIECE_BYTES) {
+                long length = Math.min(PIECE_BYTES, extentBytes - done);
+                pieces.add(new Piece(imageOffset + done, file, fileOffset + done, length));
+            }
+            fileOffset += extentBytes;
+            remaining -= extentBytes;
+        }
+        if (remaining > 0) failures.put(host.toString(), "Cluster chain ends " + remaining + " bytes short of DIR_FileSize=" + entry.getFileSize());
+    }
+
+    //Workers take pieces in image order from a shared cursor, so reads in flight are always neighbours.
+    private void copyPieces(int threads) throws IOException {
+        pieces.sort(Comparator.comparingLong(piece -> piece.imageOffset));
+        AtomicInteger next = new AtomicInteger();
+        LongAdder copied = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FAT32-extract");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(() -> {
+                    for (int piece = next.getAndIncrement(); piece < pieces.size(); piece = next.getAndIncrement()) copied.add(copy(pieces.get(piece)));
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Extraction failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        bytes = copied.sum();
+    }
+
+    //Bytes copied. A failed piece is recorded against its file.
+    private long copy(Piece piece) {
+        Path host = hostFiles.get(piece.file);
+        try (FileChannel target = FileChannel.open(host, StandardOpenOption.WRITE)) {
+            target.position(piece.fileOffset);
+            return volume.getStorage().transferTo(piece.imageOffset, piece.length, target);
+        } catch (IOException e) {
+            failures.putIfAbsent(host.toString(), e.getMessage());
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Extracted ").append(files).append(" files and ").append(directories).append(" directories, ").append(bytes)
+            .append(" bytes in ").append(pieces.size()).append(" reads in image order");
+        failures.forEach((host, message) -> text.append("\nError: ").append(host).append(": ").append(message));
+        return text.toString();
+    }
+}
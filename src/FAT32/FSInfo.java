@@ -0,0 +1,65 @@
+package FAT32;
+import java.io.*;
+import java.nio.*;
+
+//The FSInfo sector (BPB_FSInfo): the free cluster count and next free cluster hint the last writer left behind.
+//Both are only hints. The MS spec asks readers to treat 0xFFFFFFFF, or a value out of range, as unknown.
+//
+// Microsoft Name  Field                       Offset  Size    Value
+// FSI_LeadSig     Lead Signature              0x000   32 Bits 0x41615252
+// FSI_StrucSig    Structure Signature         0x1E4   32 Bits 0x61417272
+// FSI_Free_Count  Free Cluster Count          0x1E8   32 Bits 0xFFFFFFFF if unknown
+// FSI_Nxt_Free    Next Free Cluster Hint      0x1EC   32 Bits 0xFFFFFFFF if unknown
+public class FSInfo {
+    private static final int LEAD_SIG = 0x41615252;
+    private static final int STRUC_SIG = 0x61417272;
+    protected static final long UNKNOWN = 0xFFFFFFFFL;
+
+    private long offset; //Of the sector in the image, -1 when the volume has none.
+    private boolean valid; //Both signatures hold.
+    private long freeCount = UNKNOWN;
+    private long nextFree = UNKNOWN;
+
+    public static FSInfo read(Volume volume) throws IOException {
+        FSInfo info = new FSInfo();
+        long sector = volume.BPB_FSInfo.getVal();
+        if (sector == 0 || sector == 0xFFFF || sector >= volume.BPB_RsvdSecCnt.getVal()) { //Must sit in the reserved region.
+            info.offset = -1;
+            return info;
+        }
+        info.offset = sector * volume.BPB_BytesPerSec.getVal();
+        ByteBuffer fsInfo = volume.getStorage().buffer(info.offset, 512);
+        info.valid = fsInfo.getInt(0) == LEAD_SIG && fsInfo.getInt(484) == STRUC_SIG;
+        if (!info.valid) return info;
+        long limit = volume.getClusterLimit();
+        info.freeCount = fsInfo.getInt(488) & 0xFFFFFFFFL;
+        if (info.freeCount > limit - 2) info.freeCount = UNKNOWN;
+        info.nextFree = fsInfo.getInt(492) & 0xFFFFFFFFL;
+        if (info.nextFree < 2 || info.nextFree >= limit) info.nextFree = UNKNOWN;
+        return info;
+    }
+
+    //Records the free count and next free hint a write left behind. Does nothing when the volume has no valid FSInfo sector.
+    //The backup copy next to the backup boot sector is left alone, as other writers do.
+    public void update(Volume volume, long freeCount, long nextFree) throws IOException {
+        if (offset < 0 || !valid) return;
+        ByteBuffer hints = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        hints.putInt(0, (int)freeCount).putInt(4, (int)nextFree);
+        volume.getStorage().write(offset + 488, hints);
+        this.freeCount = freeCount;
+        this.nextFree = nextFree;
+    }
+
+    public long getOffset() {return offset;}
+    public boolean isValid() {return valid;}
+    public long getFreeCount() {return freeCount;}
+    public long getNextFree() {return nextFree;}
+
+    @Override
+    public String toString() {
+        if (offset < 0) return "FSInfo: none on this volume";
+        if (!valid) return "FSInfo: bad signature at offset " + offset;
+        return "FSInfo: " + (freeCount == UNKNOWN ? "unknown" : String.valueOf(freeCount)) + " free clusters, next free hint "
+            + (nextFree == UNKNOWN ? "unknown" : Util.printHex(nextFree));
+    }
+}
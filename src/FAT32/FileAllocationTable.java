@@ -0,0 +1,146 @@
+package FAT32;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+
+//Read-only view of one FAT copy. Entries are read on demand as 28 bit values out of little-endian int pages of the FAT region,
+//so startup does no work and memory never exceeds the on-disk size of the FAT.
+//Mapped storage hands out pages as zero-copy views, which are all kept. Otherwise pages are copied in and held in a bounded LRU.
+//Writers (put) go around it to storage, and then call invalidate().
+public class FileAllocationTable {
+    private static final int PAGE_SHIFT = 14; //16K entries = 64KB per page.
+    private static final int PAGE_ENTRIES = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_ENTRIES - 1;
+    protected static final long ENTRY_MASK = 0x0FFFFFFF; //Top 4 bits of a FAT32 entry are reserved.
+
+    private Storage storage;
+    private long offset;
+    private long entries;
+    private IntBuffer[] views; //Every page, when storage is zero-copy.
+    private Map<Integer, IntBuffer> lru; //Recently used pages, otherwise.
+    private volatile Page last; //Chain walks stay inside one page most of the time.
+    private Stats stats; //Counts get() calls, when not null.
+
+    private static final int SCAN_ENTRIES = 1 << 16; //256KB of FAT per scan task.
+
+    //Visits one range of a parallel scan. first is the cluster number of entries.get(0).
+    public interface RangeScan {
+        void scan(long first, IntBuffer entries) throws IOException;
+    }
+
+    private static class Page {
+        final int index;
+        final IntBuffer entries;
+        Page(int index, IntBuffer entries) {this.index = index; this.entries = entries;}
+    }
+
+    public FileAllocationTable(Storage storage, long offset, long bytesPerFAT, int maxCachedPages) {
+        this(storage, offset, bytesPerFAT, maxCachedPages, null);
+    }
+
+    public FileAllocationTable(Storage storage, long offset, long bytesPerFAT, int maxCachedPages, Stats stats) {
+        this.storage = storage;
+        this.stats = stats;
+        this.offset = offset;
+        this.entries = bytesPerFAT/4; //Each FAT entry is a 4 byte numeric value.
+        int pages = (int)((entries + PAGE_ENTRIES - 1) >> PAGE_SHIFT);
+        if (storage.isZeroCopy()) {
+            views = new IntBuffer[pages];
+        } else {
+            lru = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, IntBuffer> eldest) {
+                    return size() > maxCachedPages;
+                }
+            };
+        }
+    }
+
+    public long size() {return entries;}
+
+    //Drops copied pages after the FAT was written. Mapped views show writes as they happen.
+    public void invalidate() {
+        last = null;
+        if (lru != null) synchronized (lru) {lru.clear();}
+    }
+
+    //Next cluster number in the chain after clusterNumber.
+    public long get(long clusterNumber) throws IOException {
+        if (stats != null) stats.FATStep();
+        if (clusterNumber < 0 || clusterNumber >= entries) throw new IOException("Cluster number " + Util.printHex(clusterNumber) + " is outside the FAT, which has " + entries + " entries");
+        int pageIndex = (int)(clusterNumber >> PAGE_SHIFT);
+        Page page = last;
+        if (page == null || page.index != pageIndex) {
+            page = new Page(pageIndex, page(pageIndex));
+            last = page;
+        }
+        return page.entries.get((int)clusterNumber & PAGE_MASK) & ENTRY_MASK;
+    }
+
+    private IntBuffer page(int pageIndex) throws IOException {
+        if (views != null) {
+            IntBuffer view = views[pageIndex];
+            if (view == null) views[pageIndex] = view = readPage(pageIndex);
+            return view;
+        }
+        IntBuffer page;
+        synchronized (lru) {page = lru.get(pageIndex);}
+        if (page != null) return page;
+        page = readPage(pageIndex); //Outside the lock, so readers of other pages are not held up by the read.
+        synchronized (lru) {
+            IntBuffer raced = lru.putIfAbsent(pageIndex, page);
+            return raced == null ? page : raced;
+        }
+    }
+
+    //Raw entries [firstCluster, firstCluster+count) straight from storage, bypassing the page cache. For scans of the whole table.
+    //Values still carry the reserved top 4 bits, mask them with ENTRY_MASK.
+    public IntBuffer entries(long firstCluster, int count) throws IOException {
+        if (firstCluster < 0 || firstCluster + count > entries) throw new IOException("Entries " + firstCluster + " to " + (firstCluster + count) + " are outside the FAT, which has " + entries + " entries");
+        return storage.buffer(offset + firstCluster*4, count*4).asIntBuffer();
+    }
+
+    //Reads entries [from, to) in fork/join tasks. Ranges are aligned to 64 clusters, so scans may keep one bit per cluster
+    //in a plain long[] without two tasks ever writing the same word.
+    public void scan(long from, long to, RangeScan scan) throws IOException {
+        try {
+            ForkJoinPool.commonPool().invoke(new ScanTask(from, to, scan));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private long from;
+        private long to;
+        private RangeScan scan;
+
+        ScanTask(long from, long to, RangeScan scan) {
+            this.from = from;
+            this.to = to;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            long middle = ((from + to) >>> 1) & ~63L; //Word aligned, so the halves share no bitmap word.
+            if (to - from > SCAN_ENTRIES && middle > from) {
+                invokeAll(new ScanTask(from, middle, scan), new ScanTask(middle, to, scan));
+                return;
+            }
+            try {
+                scan.scan(from, entries(from, (int)(to - from)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private IntBuffer readPage(int pageIndex) throws IOException {
+        long first = (long)pageIndex << PAGE_SHIFT;
+        int len = (int)Math.min(PAGE_ENTRIES, entries - first) * 4;
+        return storage.buffer(offset + first*4, len).asIntBuffer();
+    }
+}
@@ -0,0 +1,169 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.io.*;
+
+//How fragmented the files of the volume are. One parallel pass over the FAT marks, in a bitmap, every cluster whose successor is
+//not the next cluster number, which is the last cluster of an extent. Each file's chain is then walked an extent at a time:
+//one FAT lookup per extent, none per cluster. Results are summed as the tree is walked, so apart from the bitmap and one path
+//per directory, memory does not grow with the number of files.
+public class Fragmentation {
+    private static final double SEEK_MS = 8.0; //Average seek plus rotational delay of a hard disk.
+    private static final int BUCKETS = 12; //1, 2, 3-4, 5-8, ..., 513-1024, more.
+
+    private Volume volume;
+    private FileAllocationTable FAT;
+    private long limit;
+    private long[] extentEnds; //Bit set when the cluster's FAT entry is not the next cluster number.
+    private long files; //With at least one cluster.
+    private long fragmentedFiles;
+    private long clusters;
+    private long extents;
+    private long seekDistance; //Clusters jumped between extents, over every file.
+    private long[] histogram = new long[BUCKETS]; //Files by extent count.
+    private int worstCount;
+    private String[] worstPaths;
+    private long[] worstExtents;
+    private long[] worstClusters;
+    private long[] worstDistances;
+
+    public static Fragmentation of(Volume volume, int worst) throws IOException {
+        Fragmentation fragmentation = new Fragmentation(volume, worst);
+        fragmentation.markExtentEnds();
+        fragmentation.walkTree();
+        return fragmentation;
+    }
+
+    private Fragmentation(Volume volume, int worst) {
+        this.volume = volume;
+        this.FAT = volume.getFAT();
+        this.limit = volume.getClusterLimit();
+        worstPaths = new String[worst];
+        worstExtents = new long[worst];
+        worstClusters = new long[worst];
+        worstDistances = new long[worst];
+    }
+
+    private void markExtentEnds() throws IOException {
+        long[] ends = new long[(int)((limit + 63) >>> 6)];
+        FAT.scan(2, limit, (first, entries) -> {
+            for (int i = 0; i < entries.capacity(); i++) {
+                long clusterNumber = first + i;
+                if ((entries.get(i) & FileAllocationTable.ENTRY_MASK) != clusterNumber + 1) ends[(int)(clusterNumber >>> 6)] |= 1L << clusterNumber;
+            }
+        });
+        extentEnds = ends;
+    }
+
+    //First extent end at or after clusterNumber, -1 if there is none.
+    private long nextExtentEnd(long clusterNumber) {
+        int word = (int)(clusterNumber >>> 6);
+        long bits = extentEnds[word] & (-1L << clusterNumber);
+        while (bits == 0) {
+            if (++word == extentEnds.length) return -1;
+            bits = extentEnds[word];
+        }
+        return ((long)word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private void walkTree() throws IOException {
+        List<String> dirPaths = new ArrayList<>();
+        List<Long> dirClusters = new ArrayList<>();
+        Set<Long> visited = new HashSet<>(); //A corrupt tree may link back to an ancestor.
+        dirPaths.add(Volume.rootDirName);
+        dirClusters.add(volume.getRootCluster());
+        visited.add(volume.getRootCluster());
+        for (int dir = 0; dir < dirPaths.size(); dir++) { //dirPaths grows as subdirectories are found, breadth first.
+            String parent = dirPaths.get(dir);
+            for (DirEntry entry : volume.entriesAt(dirClusters.get(dir), false)) { //Kept out of the extent cache.
+                String name = entry.getDIR_NameString();
+                if (name.equals(".") || name.equals("..")) continue;
+                long firstCluster = entry.getNextClusterNumber();
+                if (firstCluster == 0) continue;
+                String path = parent.equals(Volume.rootDirName) ? Volume.rootDirName + entry.getDisplayName() : parent + Volume.pathDelimiter + entry.getDisplayName();
+                if (!entry.isDirectory()) measure(path, firstCluster);
+                else if (visited.add(firstCluster)) {
+                    dirPaths.add(path);
+                    dirClusters.add(firstCluster);
+                }
+            }
+        }
+    }
+
+    private void measure(String path, long firstCluster) throws IOException {
+        long fileExtents = 0;
+        long fileClusters = 0;
+        long fileDistance = 0;
+        for (long clusterNumber = firstCluster; clusterNumber >= 2 && clusterNumber < limit; ) {
+            long end = nextExtentEnd(clusterNumber);
+            if (end < 0) break;
+            fileExtents++;
+            fileClusters += end - clusterNumber + 1;
+            if (fileClusters > limit) break; //Chain loops.
+            long next = FAT.get(end);
+            if (!continuesInFAT(next)) break;
+            fileDistance += Math.abs(next - (end + 1));
+            clusterNumber = next;
+        }
+        if (fileExtents == 0) return; //Broken from the first cluster on, check will say why.
+
+        files++;
+        if (fileExtents > 1) fragmentedFiles++;
+        clusters += fileClusters;
+        extents += fileExtents;
+        seekDistance += fileDistance;
+        histogram[fileExtents == 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(fileExtents - 1))]++;
+        rank(path, fileExtents, fileClusters, fileDistance);
+    }
+
+    //Keeps the files with the most extents, most first, by insertion into the fixed size arrays.
+    private void rank(String path, long fileExtents, long fileClusters, long fileDistance) {
+        if (fileExtents == 1 || worstPaths.length == 0) return;
+        int slot = worstCount;
+        while (slot > 0 && worstExtents[slot - 1] < fileExtents) slot--;
+        if (slot == worstPaths.length) return;
+        int moved = Math.min(worstCount, worstPaths.length - 1) - slot;
+        System.arraycopy(worstPaths, slot, worstPaths, slot + 1, moved);
+        System.arraycopy(worstExtents, slot, worstExtents, slot + 1, moved);
+        System.arraycopy(worstClusters, slot, worstClusters, slot + 1, moved);
+        System.arraycopy(worstDistances, slot, worstDistances, slot + 1, moved);
+        worstPaths[slot] = path;
+        worstExtents[slot] = fileExtents;
+        worstClusters[slot] = fileClusters;
+        worstDistances[slot] = fileDistance;
+        worstCount = Math.min(worstCount + 1, worstPaths.length);
+    }
+
+    private static String bucketName(int bucket) {
+        if (bucket == 0) return "1";
+        if (bucket == BUCKETS - 1) return "more than " + (1L << (bucket - 1));
+        long low = (1L << (bucket - 1)) + 1, high = 1L << bucket;
+        return low == high ? String.valueOf(high) : low + "-" + high;
+    }
+
+    private static String seekCost(long seeks) {
+        return String.format("~%.0f ms", seeks * SEEK_MS);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(files).append(" files in ").append(extents).append(" extents over ").append(clusters).append(" clusters, ")
+            .append(fragmentedFiles).append(" fragmented").append(files == 0 ? "" : String.format(" (%.1f%%)", 100.0*fragmentedFiles/files)).append('\n');
+        text.append("Extents per file:\n");
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (histogram[bucket] > 0) text.append(String.format("  %-16s %d%n", bucketName(bucket), histogram[bucket]));
+        }
+        if (worstCount > 0) text.append("Most fragmented:\n");
+        for (int i = 0; i < worstCount; i++) {
+            long seeks = worstExtents[i] - 1;
+            text.append("  ").append(worstPaths[i]).append(": ").append(worstExtents[i]).append(" extents over ").append(worstClusters[i])
+                .append(" clusters, ").append(seeks).append(" seeks (").append(seekCost(seeks)).append("), ")
+                .append(worstDistances[i] / seeks).append(" clusters per jump\n");
+        }
+        long seeks = extents - files;
+        text.append("Reading every file once costs ").append(seeks).append(" seeks between extents, ").append(seekCost(seeks))
+            .append(" at ").append(SEEK_MS).append(" ms per seek");
+        return text.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.io.*;
+
+//Free clusters of the volume, found by scanning every FAT entry in parallel. The result is a bitmap with one bit per cluster,
+//8MB per 64M clusters. put keeps one per Volume and allocates from it, so the FAT is only scanned once. The free count is kept
+//up to date as clusters are allocated. The bitmap is searched for the largest run again only after an allocation cut into it,
+//and only when it is asked for.
+public class FreeSpace {
+    private long[] bitmap; //Bit set when the cluster is free. Clusters 0 and 1 are reserved and never set.
+    private long limit; //One past the last cluster scanned.
+    private long freeClusters;
+    private long largestRunStart = -1;
+    private long largestRunLength;
+    private boolean runStale; //An allocation took clusters of the largest run, which may no longer be the largest.
+
+    public static FreeSpace scan(Volume volume) throws IOException {
+        FreeSpace space = new FreeSpace();
+        space.limit = volume.getClusterLimit();
+        space.bitmap = new long[(int)((space.limit + 63) >>> 6)];
+        long[] bitmap = space.bitmap;
+        volume.getFAT().scan(2, space.limit, (first, entries) -> {
+            for (int i = 0; i < entries.capacity(); i++) {
+                if ((entries.get(i) & FileAllocationTable.ENTRY_MASK) != 0) continue;
+                long clusterNumber = first + i;
+                bitmap[(int)(clusterNumber >>> 6)] |= 1L << clusterNumber;
+            }
+        });
+        space.summarize();
+        return space;
+    }
+
+    public long getFreeClusters() {return freeClusters;}
+    public long getUsedClusters() {return limit - 2 - freeClusters;}
+    public long getLargestRunStart() {
+        findLargestRun();
+        return largestRunStart;
+    }
+    public long getLargestRunLength() {
+        findLargestRun();
+        return largestRunLength;
+    }
+    public boolean isFree(long clusterNumber) {return clusterNumber < limit && (bitmap[(int)(clusterNumber >>> 6)] & (1L << clusterNumber)) != 0;}
+
+    //First free cluster at or after clusterNumber, -1 if there is none.
+    public long nextFree(long clusterNumber) {
+        if (clusterNumber >= limit) return -1;
+        int word = (int)(clusterNumber >>> 6);
+        long bits = bitmap[word] & (-1L << clusterNumber);
+        while (bits == 0) {
+            if (++word == bitmap.length) return -1;
+            bits = bitmap[word];
+        }
+        return ((long)word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    //First used cluster at or after clusterNumber, limit if the rest are free. Bits past limit are never set, so read as used.
+    public long nextUsed(long clusterNumber) {
+        if (clusterNumber >= limit) return limit;
+        int word = (int)(clusterNumber >>> 6);
+        long bits = ~bitmap[word] & (-1L << clusterNumber);
+        while (bits == 0) {
+            if (++word == bitmap.length) return limit;
+            bits = ~bitmap[word];
+        }
+        return Math.min(limit, ((long)word << 6) + Long.numberOfTrailingZeros(bits));
+    }
+
+    //Takes count clusters and marks them used. The free run at or after hint is used when it can hold them all, so files written one
+    //after another land one after another. Otherwise the largest free run, and only when no run is long enough, the fewest runs that are,
+    //largest first. Extents are in cluster order, the order they are to be chained in.
+    public ExtentMap allocate(long count, long hint) throws IOException {
+        if (count > freeClusters) throw new IOException("Not enough free space: " + count + " clusters needed, " + freeClusters + " free");
+        if (count == 0) return new ExtentMap(0, new long[0], new long[0]);
+        long start = hint >= 2 ? nextFree(hint) : -1;
+        if (start < 0 || nextUsed(start) - start < count) start = getLargestRunLength() >= count ? largestRunStart : -1;
+        long[][] extents = start >= 0 ? new long[][] {{start, count}} : fewestRuns(count);
+        long[] starts = new long[extents.length];
+        long[] lengths = new long[extents.length];
+        for (int extent = 0; extent < extents.length; extent++) {
+            starts[extent] = extents[extent][0];
+            lengths[extent] = extents[extent][1];
+            for (long clusterNumber = starts[extent]; clusterNumber < starts[extent] + lengths[extent]; clusterNumber++) {
+                bitmap[(int)(clusterNumber >>> 6)] &= ~(1L << clusterNumber);
+            }
+            if (starts[extent] < largestRunStart + largestRunLength && starts[extent] + lengths[extent] > largestRunStart) runStale = true;
+        }
+        freeClusters -= count;
+        return new ExtentMap(starts[0], starts, lengths);
+    }
+
+    //{start, length} of the longest runs that together hold count clusters, the last one cut to fit, in cluster order.
+    private long[][] fewestRuns(long count) {
+        List<long[]> runs = new ArrayList<>();
+        for (long start = nextFree(2); start >= 0; ) {
+            long end = nextUsed(start);
+            runs.add(new long[] {start, end - start});
+            start = nextFree(end);
+        }
+        runs.sort((a, b) -> Long.compare(b[1], a[1]));
+        List<long[]> taken = new ArrayList<>();
+        for (long[] run : runs) {
+            if (count == 0) break;
+            run[1] = Math.min(run[1], count);
+            count -= run[1];
+            taken.add(run);
+        }
+        taken.sort((a, b) -> Long.compare(a[0], b[0]));
+        return taken.toArray(new long[0][]);
+    }
+
+    private void findLargestRun() {
+        if (runStale) summarize();
+    }
+
+    //Counts free clusters and finds the longest run of them, a whole word at a time where the word is all free or all used.
+    private void summarize() {
+        runStale = false;
+        freeClusters = 0;
+        largestRunStart = -1;
+        largestRunLength = 0;
+        long runStart = 0;
+        long runLength = 0;
+        for (int word = 0; word < bitmap.length; word++) {
+            long bits = bitmap[word];
+            freeClusters += Long.bitCount(bits);
+            if (bits == -1L) {
+                if (runLength == 0) runStart = (long)word << 6;
+                runLength += 64;
+                continue;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if ((bits & (1L << bit)) != 0) {
+                    if (runLength == 0) runStart = ((long)word << 6) + bit;
+                    runLength++;
+                } else {
+                    endRun(runStart, runLength);
+                    runLength = 0;
+                    if (bits >>> bit == 0) break; //Nothing free in the rest of the word.
+                }
+            }
+        }
+        endRun(runStart, runLength);
+    }
+
+    private void endRun(long runStart, long runLength) {
+        if (runLength <= largestRunLength) return;
+        largestRunStart = runStart;
+        largestRunLength = runLength;
+    }
+
+    @Override
+    public String toString() {
+        findLargestRun();
+        return (""
+        +"FAT scan: " + freeClusters + " free clusters, " + getUsedClusters() + " used\n"
+        +"Largest free run is " + largestRunLength + " clusters" + (largestRunStart < 0 ? "" : " at " + printHex(largestRunStart)));
+    }
+}
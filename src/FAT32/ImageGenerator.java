@@ -0,0 +1,495 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+//Writes synthetic FAT32 images from a declarative spec, to test the reader on volumes of any size.
+//Nothing is kept per file. The tree is a complete k-ary tree of directories (k is the smallest branching that fits them in
+//the depth), files are dealt round-robin over the directories and each file's size comes from a hash of its number, so where
+//everything lives can be recomputed in order. The image is then streamed front to back through one fixed buffer: reserved
+//sectors, every FAT copy, directory clusters, file clusters. Free space is left as holes. Memory is the buffer plus 8 bytes per directory.
+//
+//Directories come first, one chain each, right after the root at cluster 2. File clusters follow in directory order, in groups of
+//`interleave` files written round-robin a cluster at a time (as concurrent writers leave them), with `gap` free clusters after each.
+public class ImageGenerator {
+    private static final int BYTES_PER_SEC = 512;
+    private static final int RSVD_SEC_CNT = 32;
+    private static final int NUM_FATS = 2;
+    private static final int BK_BOOT_SEC = 6;
+    private static final long MIN_CLUSTERS = 65525; //Fewer and the volume is FAT16, per the MS spec.
+    private static final long MAX_CLUSTERS = 0x0FFFFFF5;
+    private static final int EOC = 0x0FFFFFFF;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int ZERO_FILL = 4096; //Longest skip written out rather than left as a hole.
+
+    private Spec spec;
+    private int bytesPerCluster;
+    private int entriesPerName; //Short entry plus LFN entries.
+    private long branching; //Children per directory.
+    private long filesPerDir; //Every directory has this many files, the first extraFiles one more.
+    private long extraFiles;
+    private long[] dirStart; //First cluster of each directory, 0 is the root.
+    private long fileBase; //First cluster after the directories.
+    private long fileEnd; //One past the last cluster in use.
+    private long usedClusters;
+    private long FATSz32;
+    private long totSec32;
+    private long clusterCount;
+    private Output out;
+
+    public static void main(String[] args) throws IOException {
+        String path = null;
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                path = arg;
+                continue;
+            }
+            String[] option = arg.substring(2).split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+        if (path == null) {
+            System.out.println("Error: Improper number of arguments. Usage: ImageGenerator <IMAGE_PATH> [--option=value ...]. args=" + Arrays.toString(args));
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            ImageGenerator generator = write(Paths.get(path), Spec.parse(options));
+            System.out.println(generator + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    public static ImageGenerator write(Path path, Spec spec) throws IOException {
+        ImageGenerator generator = new ImageGenerator(spec);
+        generator.layOut();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            generator.out = new Output(channel);
+            generator.writeReserved();
+            for (int copy = 0; copy < NUM_FATS; copy++) generator.writeFAT((RSVD_SEC_CNT + copy*generator.FATSz32) * BYTES_PER_SEC);
+            generator.writeDirs();
+            if (spec.fill) generator.writeFiles();
+            long end = generator.totSec32 * BYTES_PER_SEC;
+            if (generator.out.position() < end) { //Full length, even where the end is free.
+                generator.out.seek(end - 1);
+                generator.out.put((byte)0);
+            }
+            generator.out.flush();
+        }
+        return generator;
+    }
+
+    private ImageGenerator(Spec spec) {
+        this.spec = spec;
+        this.bytesPerCluster = spec.secPerClus * BYTES_PER_SEC;
+        this.entriesPerName = spec.longNames ? 1 + LongName.entryCount(longName(0, false)) : 1;
+    }
+
+    //Byte at offset of a file's content, as the generator fills it. The period of 251 divides no cluster size, so a cluster
+    //read from the wrong place shows.
+    public static byte patternByte(long file, long offset) {
+        return (byte)((offset % 251 * 7 + file) % 251);
+    }
+
+    public long getClusterCount() {return clusterCount;}
+    public long getUsedClusters() {return usedClusters;}
+
+    //Sizes the tree and the volume, before anything is written.
+    private void layOut() {
+        long dirs = spec.dirs;
+        branching = branchingFor(dirs, spec.depth);
+        filesPerDir = spec.files / (dirs + 1);
+        extraFiles = spec.files % (dirs + 1);
+
+        dirStart = new long[(int)(dirs + 1)];
+        long cluster = 2;
+        for (int dir = 0; dir <= dirs; dir++) {
+            dirStart[dir] = cluster;
+            cluster += dirClusters(dir);
+        }
+        fileBase = cluster;
+        usedClusters = cluster - 2;
+        Groups groups = new Groups();
+        while (groups.next()) {
+            for (int i = 0; i < groups.count; i++) usedClusters += groups.lengths[i];
+        }
+        fileEnd = groups.base;
+
+        if (spec.size == 0) { //Smallest volume that holds the tree.
+            clusterCount = Math.max(MIN_CLUSTERS, fileEnd - 2);
+            FATSz32 = ((clusterCount + 2) * 4 + BYTES_PER_SEC - 1) / BYTES_PER_SEC;
+            totSec32 = RSVD_SEC_CNT + NUM_FATS*FATSz32 + clusterCount*spec.secPerClus;
+        } else {
+            totSec32 = spec.size / BYTES_PER_SEC;
+            FATSz32 = (((totSec32 - RSVD_SEC_CNT) / spec.secPerClus + 2) * 4 + BYTES_PER_SEC - 1) / BYTES_PER_SEC; //Clusters left over by the FATs are not counted.
+            clusterCount = Math.max(0, (totSec32 - RSVD_SEC_CNT - NUM_FATS*FATSz32) / spec.secPerClus);
+        }
+        if (totSec32 > 0xFFFFFFFFL) throw new IllegalArgumentException("Volume of " + totSec32 + " sectors does not fit BPB_TotSec32. Use a larger --sec-per-clus or fewer files");
+        if (clusterCount < MIN_CLUSTERS) throw new IllegalArgumentException("Volume has " + clusterCount + " clusters, FAT32 needs at least " + MIN_CLUSTERS + ". Use a larger --size or a smaller --sec-per-clus");
+        if (clusterCount > MAX_CLUSTERS) throw new IllegalArgumentException("Volume has " + clusterCount + " clusters, FAT32 allows at most " + MAX_CLUSTERS + ". Use a larger --sec-per-clus");
+        if (fileEnd > clusterCount + 2) throw new IllegalArgumentException("Tree needs clusters up to " + fileEnd + " but the volume has " + clusterCount + ". Use a larger --size");
+    }
+
+    //Smallest k whose tree of the given depth holds dirs directories below the root. Binary search, the count grows with k.
+    private static long branchingFor(long dirs, int depth) {
+        if (dirs == 0) return 0;
+        long low = 1, high = dirs;
+        while (low < high) {
+            long k = (low + high) >>> 1;
+            long capacity = 0, level = 1;
+            for (int d = 0; d < depth && capacity < dirs; d++) {
+                level = level > dirs / k ? dirs : level * k; //Saturates, only capacity >= dirs matters.
+                capacity += level;
+            }
+            if (capacity >= dirs) high = k;
+            else low = k + 1;
+        }
+        return low;
+    }
+
+    private long firstChild(long dir) {return branching * dir + 1;}
+    private long childCount(long dir) {return Math.max(0, Math.min(firstChild(dir) + branching - 1, spec.dirs) - firstChild(dir) + 1);}
+    private long parentOf(long dir) {return (dir - 1) / branching;}
+    private long filesIn(long dir) {return filesPerDir + (dir < extraFiles ? 1 : 0);}
+    private long firstPosition(long dir) {return dir*filesPerDir + Math.min(dir, extraFiles);}
+
+    //File number at a position of the directory-ordered layout. File f is in directory f % (dirs+1).
+    private long fileAt(long position) {
+        long dir, index;
+        long big = extraFiles * (filesPerDir + 1); //Positions in the directories with one extra file.
+        if (position < big) {
+            dir = position / (filesPerDir + 1);
+            index = position % (filesPerDir + 1);
+        } else {
+            dir = extraFiles + (position - big) / filesPerDir;
+            index = (position - big) % filesPerDir;
+        }
+        return index * (spec.dirs + 1) + dir;
+    }
+
+    private long dirClusters(long dir) {
+        long entries = (dir == 0 ? 1 : 2) + (childCount(dir) + filesIn(dir)) * entriesPerName; //Volume label or dot entries.
+        return Math.max(1, (entries * Volume.bytesPerEntry + bytesPerCluster - 1) / bytesPerCluster);
+    }
+
+    private long sizeOf(long file) {
+        if (spec.minSize == spec.maxSize) return spec.minSize;
+        long hash = mix(spec.seed + file * 0x9E3779B97F4A7C15L);
+        double unit = (hash >>> 11) * 0x1.0p-53;
+        if (!spec.logSizes) return spec.minSize + (long)(unit * (spec.maxSize - spec.minSize + 1));
+        double low = Math.log(Math.max(1, spec.minSize)), high = Math.log(spec.maxSize + 1);
+        return Math.min(spec.maxSize, Math.max(spec.minSize, (long)Math.exp(low + unit * (high - low))));
+    }
+
+    //SplitMix64 finalizer.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static String shortName(long number, boolean dir) {
+        return dir ? String.format(Locale.ROOT, "D%07X   ", number) : String.format(Locale.ROOT, "F%07XDAT", number);
+    }
+
+    private static String longName(long number, boolean dir) {
+        return dir ? String.format(Locale.ROOT, "directory_%010d", number) : String.format(Locale.ROOT, "file_%010d.data", number);
+    }
+
+    private void writeReserved() throws IOException {
+        ByteBuffer boot = ByteBuffer.allocate(BYTES_PER_SEC).order(ByteOrder.LITTLE_ENDIAN);
+        boot.put(0, (byte)0xEB).put(1, (byte)0x58).put(2, (byte)0x90).put(3, "MSWIN4.1".getBytes());
+        boot.putShort(0x0B, (short)BYTES_PER_SEC).put(0x0D, (byte)spec.secPerClus).putShort(0x0E, (short)RSVD_SEC_CNT).put(0x10, (byte)NUM_FATS);
+        boot.put(0x15, (byte)0xF8).putShort(0x18, (short)63).putShort(0x1A, (short)255).putInt(0x20, (int)totSec32);
+        boot.putInt(0x24, (int)FATSz32).putInt(0x2C, 2).putShort(0x30, (short)1).putShort(0x32, (short)BK_BOOT_SEC);
+        boot.put(0x40, (byte)0x80).put(0x42, (byte)0x29).putInt(0x43, (int)spec.seed).put(0x47, "SYNTHETIC  FAT32   ".getBytes());
+        boot.put(0x1FE, (byte)0x55).put(0x1FF, (byte)0xAA);
+
+        ByteBuffer fsInfo = ByteBuffer.allocate(BYTES_PER_SEC).order(ByteOrder.LITTLE_ENDIAN);
+        fsInfo.putInt(0, 0x41615252).putInt(484, 0x61417272).putInt(488, (int)(clusterCount - usedClusters));
+        fsInfo.putInt(492, fileEnd < clusterCount + 2 ? (int)fileEnd : (int)FSInfo.UNKNOWN);
+        fsInfo.put(0x1FE, (byte)0x55).put(0x1FF, (byte)0xAA);
+
+        for (long sector : new long[] {0, BK_BOOT_SEC}) {
+            out.seek(sector * BYTES_PER_SEC);
+            out.put(boot.array());
+            out.put(fsInfo.array());
+        }
+    }
+
+    private void writeFAT(long offset) throws IOException {
+        out.seek(offset);
+        out.putInt(0x0FFFFFF8);
+        out.putInt(EOC);
+        for (int dir = 0; dir <= spec.dirs; dir++) {
+            long last = dirStart[dir] + dirClusters(dir) - 1;
+            for (long cluster = dirStart[dir]; cluster <= last; cluster++) out.putInt(cluster == last ? EOC : (int)(cluster + 1));
+        }
+        Groups groups = new Groups();
+        while (groups.next()) {
+            groups.visit((cluster, next, member, index) -> {
+                out.seek(offset + cluster*4);
+                out.putInt((int)next);
+            });
+        }
+    }
+
+    //Every directory in cluster order: dot entries (or the volume label), subdirectories, then files.
+    private void writeDirs() throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(entriesPerName * Volume.bytesPerEntry).order(ByteOrder.LITTLE_ENDIAN);
+        Groups groups = new Groups(); //Walked alongside, for the first cluster of each file.
+        int member = 0;
+        for (int dir = 0; dir <= spec.dirs; dir++) {
+            out.seek(clusterOffset(dirStart[dir]));
+            if (dir == 0) {
+                out.put(shortEntry(entry, 0, "SYNTHETIC  ", ATTR.ATTR_VOLUME_ID, 0, 0).array(), 0, Volume.bytesPerEntry);
+            } else {
+                out.put(shortEntry(entry, 0, ".          ", ATTR.ATTR_DIRECTORY, dirStart[dir], 0).array(), 0, Volume.bytesPerEntry);
+                long parent = parentOf(dir);
+                out.put(shortEntry(entry, 0, "..         ", ATTR.ATTR_DIRECTORY, parent == 0 ? 0 : dirStart[(int)parent], 0).array(), 0, Volume.bytesPerEntry);
+            }
+            for (long child = firstChild(dir); child < firstChild(dir) + childCount(dir); child++) {
+                out.put(namedEntry(entry, child, true, ATTR.ATTR_DIRECTORY, dirStart[(int)child], 0).array());
+            }
+            for (long i = 0; i < filesIn(dir); i++) {
+                if (member == groups.count) {
+                    groups.next();
+                    member = 0;
+                }
+                out.put(namedEntry(entry, groups.files[member], false, ATTR.ATTR_ARCHIVE, groups.firsts[member], groups.sizes[member]).array());
+                member++;
+            }
+        }
+    }
+
+    //Every file cluster, filled with patternByte. A cluster's bytes are copied out of one period-long template, starting where
+    //the template holds the cluster's first byte: value v is at (v*36) % 251, as 36 is the inverse of 7 mod 251.
+    private void writeFiles() throws IOException {
+        byte[] template = new byte[bytesPerCluster + 251];
+        for (int i = 0; i < template.length; i++) template[i] = patternByte(0, i);
+        Groups groups = new Groups();
+        while (groups.next()) {
+            groups.visit((cluster, next, member, index) -> {
+                long offset = index * bytesPerCluster;
+                int bytes = (int)Math.min(bytesPerCluster, groups.sizes[member] - offset);
+                int start = (patternByte(groups.files[member], offset) & 0xFF) * 36 % 251;
+                out.seek(clusterOffset(cluster));
+                out.put(template, start, bytes);
+            });
+        }
+    }
+
+    private ByteBuffer namedEntry(ByteBuffer entry, long number, boolean dir, ATTR attr, long cluster, long size) {
+        int shortAt = (entriesPerName - 1) * Volume.bytesPerEntry;
+        shortEntry(entry, shortAt, shortName(number, dir), attr, cluster, size);
+        if (spec.longNames) LongName.write(entry, 0, longName(number, dir), LongName.checksumOf(entry, shortAt));
+        return entry;
+    }
+
+    private static ByteBuffer shortEntry(ByteBuffer entry, int offset, String name, ATTR attr, long cluster, long size) {
+        for (int i = 0; i < Volume.bytesPerEntry; i++) entry.put(offset + i, (byte)0);
+        for (int i = 0; i < 11; i++) entry.put(offset + i, (byte)name.charAt(i));
+        entry.put(offset + 11, (byte)attr.bitmask);
+        entry.putShort(offset + 20, (short)(cluster >>> 16)).putShort(offset + 26, (short)cluster).putInt(offset + 28, (int)size);
+        return entry;
+    }
+
+    private long clusterOffset(long cluster) {
+        return (RSVD_SEC_CNT + NUM_FATS*FATSz32) * BYTES_PER_SEC + (cluster - 2) * bytesPerCluster;
+    }
+
+    @Override
+    public String toString() {
+        String tree = spec.dirs == 0 ? " in the root, " : " in " + (spec.dirs + 1) + " directories (" + branching + " per directory, depth " + spec.depth + "), ";
+        return "Wrote " + spec.files + " files" + tree + usedClusters + " of " + clusterCount + " clusters of " + bytesPerCluster + " bytes, " + totSec32 * BYTES_PER_SEC + " bytes";
+    }
+
+    //What to generate. Parsed from the same --name=value options the shell takes.
+    public static class Spec {
+        private long size; //Bytes, 0 for the smallest volume that holds the tree.
+        private int secPerClus = 8;
+        private long files = 1000;
+        private long dirs = 10; //Besides the root.
+        private int depth = 3;
+        private long minSize = 1 << 10;
+        private long maxSize = 1 << 20;
+        private boolean logSizes = true; //Log-uniform, most files small, as on real volumes. Otherwise uniform.
+        private int interleave = 1;
+        private int gap;
+        private boolean longNames;
+        private boolean fill = true; //Otherwise file clusters are left as holes and read back as zeros.
+        private long seed = 1;
+
+        //size=BYTES sec-per-clus=N files=N dirs=N depth=N sizes=BYTES|uniform:MIN-MAX|log:MIN-MAX
+        //fragmentation=none|interleave:N|gap:N long-names fill=pattern|none seed=N. Sizes take K/M/G suffixes.
+        public static Spec parse(Map<String, String> options) {
+            Spec spec = new Spec();
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                String value = option.getValue();
+                switch (option.getKey()) {
+                    case "size": spec.size = parseSize(value); break;
+                    case "sec-per-clus": spec.secPerClus = Integer.parseInt(value); break;
+                    case "files": spec.files = Long.parseLong(value); break;
+                    case "dirs": spec.dirs = Long.parseLong(value); break;
+                    case "depth": spec.depth = Integer.parseInt(value); break;
+                    case "sizes": spec.parseSizes(value); break;
+                    case "fragmentation": spec.parseFragmentation(value); break;
+                    case "long-names": spec.longNames = Boolean.parseBoolean(value); break;
+                    case "fill": spec.fill = !value.equals("none"); break;
+                    case "seed": spec.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option --" + option.getKey());
+                }
+            }
+            if (Integer.bitCount(spec.secPerClus) != 1 || spec.secPerClus > 128) throw new IllegalArgumentException("--sec-per-clus must be 1, 2, 4, ..., 128");
+            if (spec.files < 0 || spec.files > MAX_CLUSTERS) throw new IllegalArgumentException("--files must be between 0 and " + MAX_CLUSTERS);
+            if (spec.dirs < 0 || spec.dirs >= Integer.MAX_VALUE) throw new IllegalArgumentException("--dirs must be between 0 and " + (Integer.MAX_VALUE - 1));
+            if (spec.dirs > 0 && spec.depth < 1) throw new IllegalArgumentException("--depth must be at least 1 when there are directories");
+            if (spec.minSize < 0 || spec.maxSize > 0xFFFFFFFFL || spec.minSize > spec.maxSize) throw new IllegalArgumentException("--sizes must lie between 0 and 4G-1 with MIN <= MAX");
+            return spec;
+        }
+
+        private void parseSizes(String value) {
+            String range = value;
+            logSizes = false;
+            if (value.startsWith("uniform:")) range = value.substring(8);
+            else if (value.startsWith("log:")) {
+                range = value.substring(4);
+                logSizes = true;
+            }
+            String[] bounds = range.split("-", 2);
+            minSize = parseSize(bounds[0]);
+            maxSize = bounds.length > 1 ? parseSize(bounds[1]) : minSize;
+        }
+
+        private void parseFragmentation(String value) {
+            interleave = 1;
+            gap = 0;
+            if (value.equals("none")) return;
+            String[] pattern = value.split(":", 2);
+            int count = pattern.length > 1 ? Integer.parseInt(pattern[1]) : 0;
+            if (pattern[0].equals("interleave") && count >= 1) interleave = count;
+            else if (pattern[0].equals("gap") && count >= 0) gap = count;
+            else throw new IllegalArgumentException("--fragmentation must be none, interleave:N or gap:N");
+        }
+    }
+
+    private interface ClusterVisitor {
+        void visit(long cluster, long next, int member, long index) throws IOException;
+    }
+
+    //Walks the files in directory order, `interleave` at a time. Holds one group, so memory does not grow with the file count.
+    private class Groups {
+        int count; //Files in the current group.
+        long[] files = new long[spec.interleave];
+        long[] sizes = new long[spec.interleave];
+        long[] lengths = new long[spec.interleave]; //In clusters.
+        long[] firsts = new long[spec.interleave]; //First cluster, 0 for an empty file.
+        long base = fileBase; //First cluster of the next group.
+        private long groupBase;
+        private long position; //Of the next group's first file.
+        private int[] active = new int[spec.interleave];
+
+        //Loads the next group. Returns false past the last file.
+        boolean next() {
+            count = (int)Math.min(spec.interleave, spec.files - position);
+            if (count <= 0) return false;
+            long stride = spec.gap + 1;
+            long assigned = 0; //Clusters of the group, the first round of which goes one per non-empty file in order.
+            long rank = 0;
+            for (int i = 0; i < count; i++) {
+                files[i] = fileAt(position + i);
+                sizes[i] = sizeOf(files[i]);
+                lengths[i] = (sizes[i] + bytesPerCluster - 1) / bytesPerCluster;
+                firsts[i] = lengths[i] == 0 ? 0 : base + stride * rank++;
+                assigned += lengths[i];
+            }
+            groupBase = base;
+            base += assigned == 0 ? 0 : assigned*stride - spec.gap; //No gap after the group's last cluster.
+            position += count;
+            return true;
+        }
+
+        //Visits the clusters of the group in cluster order: a round gives the next cluster to every file that still needs one.
+        //A file's next cluster is past the rest of this round and the files before it in the next round.
+        void visit(ClusterVisitor visitor) throws IOException {
+            long stride = spec.gap + 1;
+            int activeCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (lengths[i] > 0) active[activeCount++] = i;
+            }
+            long cluster = groupBase;
+            for (long round = 0; activeCount > 0; round++) {
+                int continuing = 0; //Files with a cluster in the next round, seen so far.
+                for (int j = 0; j < activeCount; j++) {
+                    int member = active[j];
+                    long next = EOC;
+                    if (lengths[member] > round + 1) next = cluster + stride * (activeCount - j + continuing++);
+                    visitor.visit(cluster, next, member, round);
+                    cluster += stride;
+                }
+                int kept = 0;
+                for (int j = 0; j < activeCount; j++) {
+                    if (lengths[active[j]] > round + 1) active[kept++] = active[j];
+                }
+                activeCount = kept;
+            }
+        }
+    }
+
+    //Forward-only writer through one buffer. Short skips are written as zeros, long ones left as holes in the file.
+    private static class Output {
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private long bufferStart; //Position in the file of the buffer's first byte.
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return bufferStart + buffer.position();
+        }
+
+        void seek(long position) throws IOException {
+            long current = position();
+            if (position < current) throw new IllegalStateException("Output moved back from " + current + " to " + position);
+            if (position - current <= Math.min(ZERO_FILL, buffer.remaining())) {
+                while (current++ < position) buffer.put((byte)0);
+                return;
+            }
+            flush();
+            bufferStart = position;
+        }
+
+        void put(byte value) throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            put(bytes, 0, bytes.length);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer.remaining() < length) flush();
+            buffer.put(bytes, offset, length);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            long position = bufferStart;
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            bufferStart = position;
+            buffer.clear();
+        }
+    }
+}
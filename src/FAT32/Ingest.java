@@ -0,0 +1,300 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+
+//Writes one host file into the image (put). Clusters come from the Volume's free space bitmap, starting at the FSInfo next free hint,
+//in one extent whenever any free run is long enough. Data goes in with one transfer per extent. FAT entries are collected first and
+//written in spans of up to 1MB, each span to every FAT copy. The order is data, FAT, directory entry, FSInfo: a put cut short leaves
+//at worst lost clusters (which check reports), never an entry pointing at clusters that are not its own.
+//Puts on one Volume run one at a time. Readers on other threads may see a put half done.
+public class Ingest {
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL; //DIR_FileSize is 32 bits.
+    private static final int MAX_DIR_ENTRIES = 65536; //Per the MS spec, including "." and "..".
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int FAT_SPAN_ENTRIES = (1 << 20) / 4;
+    private static final int FAT_GAP_ENTRIES = 4096 / 4; //Runs this close share a write, with the entries between them written back unchanged.
+    private static final long END_OF_CHAIN = 0x0FFFFFFF;
+    private static final String SHORT_NAME_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789$%'-_@~`!(){}^#&";
+    private static final String LONG_NAME_FORBIDDEN = "\\/:*?\"<>|";
+
+    private Volume volume;
+    private Dir parent;
+    private String name;
+    private long size;
+    private ExtentMap extents;
+    private long dirClustersAdded;
+    private TreeMap<Long, long[]> FATRuns = new TreeMap<>(); //First cluster -> {length, next}. Each entry points at the one after it, the last at next.
+
+    //Copies hostFile into parent as name. name keeps its case. It is stored as a short name alone when it reads back unchanged
+    //as one, otherwise as a long name with a generated short name (BASIS~N.EXT).
+    public static Ingest put(Volume volume, Dir parent, String name, Path hostFile) throws IOException {
+        if (!volume.getStorage().isWritable()) throw new IOException(Storage.READ_ONLY);
+        checkName(name);
+        if (parent.contains(LongName.keyOf(name))) throw new IOException(name + " already exists");
+        Ingest ingest = new Ingest(volume, parent, name);
+        synchronized (volume) {
+            try (FileChannel source = FileChannel.open(hostFile, StandardOpenOption.READ)) {
+                ingest.write(source, Files.getLastModifiedTime(hostFile).toInstant());
+            } catch (IOException | RuntimeException e) {
+                try {
+                    volume.invalidate(true);
+                } catch (IOException | RuntimeException invalidateFailure) {
+                    e.addSuppressed(invalidateFailure); //The write error is the one to report.
+                }
+                throw e;
+            }
+            volume.invalidate(false);
+        }
+        return ingest;
+    }
+
+    private Ingest(Volume volume, Dir parent, String name) {
+        this.volume = volume;
+        this.parent = parent;
+        this.name = name;
+    }
+
+    private void write(FileChannel source, Instant modified) throws IOException {
+        size = source.size();
+        if (size > MAX_FILE_SIZE) throw new IOException("File of " + size + " bytes does not fit FAT32, which holds at most " + MAX_FILE_SIZE);
+        byte[] entries = entriesFor(modified);
+        FreeSpace space = volume.getFreeSpace();
+        FSInfo info = FSInfo.read(volume);
+        extents = space.allocate((size + volume.bytesPerCluster - 1) / volume.bytesPerCluster, info.getNextFree());
+        checkInImage(extents);
+        setFirstCluster(entries);
+        writeData(source);
+        chain(extents, END_OF_CHAIN);
+        long[] slots = findSlots(entries.length / Volume.bytesPerEntry, space);
+        writeFAT();
+        writeEntries(entries, slots);
+        long end = extents.getExtentCount() == 0 ? 2 : extents.getStart(extents.getExtentCount() - 1) + extents.getLength(extents.getExtentCount() - 1);
+        long nextFree = space.nextFree(end);
+        if (nextFree < 0) nextFree = space.nextFree(2);
+        info.update(volume, space.getFreeClusters(), nextFree < 0 ? FSInfo.UNKNOWN : nextFree);
+    }
+
+    //A truncated image may end before the data region its BPB describes.
+    private void checkInImage(ExtentMap map) throws IOException {
+        for (int extent = 0; extent < map.getExtentCount(); extent++) {
+            long end = volume.clusterOffset(map.getStart(extent) + map.getLength(extent));
+            if (end > volume.getStorage().size()) throw new IOException("Cluster " + printHex(map.getStart(extent) + map.getLength(extent) - 1) + " lies past the end of the image");
+        }
+    }
+
+    //One transfer per extent. The slack after the last byte is zeroed, so no earlier contents of the cluster show through.
+    private void writeData(FileChannel source) throws IOException {
+        Storage storage = volume.getStorage();
+        long remaining = size;
+        for (int extent = 0; extent < extents.getExtentCount(); extent++) {
+            long bytes = Math.min(remaining, extents.getLength(extent) * volume.bytesPerCluster);
+            storage.transferFrom(source, volume.clusterOffset(extents.getStart(extent)), bytes);
+            remaining -= bytes;
+        }
+        int used = (int)(size % volume.bytesPerCluster);
+        if (used == 0) return;
+        long lastCluster = extents.clusterAt(extents.getClusterCount() - 1);
+        storage.write(volume.clusterOffset(lastCluster) + used, ByteBuffer.allocate(volume.bytesPerCluster - used));
+    }
+
+    private void chain(ExtentMap map, long next) {
+        for (int extent = 0; extent < map.getExtentCount(); extent++) {
+            long after = extent + 1 < map.getExtentCount() ? map.getStart(extent + 1) : next;
+            FATRuns.put(map.getStart(extent), new long[] {map.getLength(extent), after});
+        }
+    }
+
+    //Absolute offsets of count consecutive free directory entries in parent. The first run of free entries long enough is used.
+    //Failing that the directory grows by as many zeroed clusters as the entries need, linked in once the FAT is written. The run of
+    //free entries at the end of the directory is carried on into them, so an end-of-directory marker is never left in front of
+    //the new entries (readers stop at it), and entries may span the old last cluster and the first added one.
+    private long[] findSlots(int count, FreeSpace space) throws IOException {
+        ExtentMap dir = volume.getExtentCache().get(parent.getClusterNumber());
+        int entriesPerCluster = volume.entriesPerCluster;
+        long[] slots = new long[count];
+        int found = 0;
+        boolean ended = false; //Past the end-of-directory marker, every entry is free.
+        for (long clusterIndex = 0; clusterIndex < dir.getClusterCount() && found < count; clusterIndex++) {
+            long clusterOffset = volume.clusterOffset(dir.clusterAt(clusterIndex));
+            ByteBuffer cluster = ended ? null : volume.getStorage().buffer(clusterOffset, volume.bytesPerCluster);
+            for (int entry = 0; entry < entriesPerCluster && found < count; entry++) {
+                int first = ended ? 0x00 : cluster.get(entry * Volume.bytesPerEntry) & 0xFF;
+                if (first == 0x00) ended = true;
+                if (first == 0x00 || first == 0xE5) slots[found++] = clusterOffset + entry * Volume.bytesPerEntry;
+                else found = 0;
+            }
+        }
+        if (found == count) return slots;
+
+        int clusters = (count - found + entriesPerCluster - 1) / entriesPerCluster; //found is the free run at the end of the directory.
+        if ((dir.getClusterCount() + clusters) * entriesPerCluster > MAX_DIR_ENTRIES) throw new IOException("Directory is full: it may hold at most " + MAX_DIR_ENTRIES + " entries");
+        long last = dir.clusterAt(dir.getClusterCount() - 1);
+        ExtentMap added = space.allocate(clusters, last + 1);
+        checkInImage(added);
+        dirClustersAdded = clusters;
+        for (int extent = 0; extent < added.getExtentCount(); extent++) {
+            volume.getStorage().write(volume.clusterOffset(added.getStart(extent)), ByteBuffer.allocate((int)added.getLength(extent) * volume.bytesPerCluster));
+        }
+        chain(added, END_OF_CHAIN);
+        FATRuns.put(last, new long[] {1, added.getStart(0)});
+        for (int slot = found; slot < count; slot++) {
+            int index = slot - found;
+            slots[slot] = volume.clusterOffset(added.clusterAt(index / entriesPerCluster)) + (index % entriesPerCluster) * Volume.bytesPerEntry;
+        }
+        return slots;
+    }
+
+    //Writes the collected runs in spans of at most FAT_SPAN_ENTRIES, joining runs less than FAT_GAP_ENTRIES apart. Each span is read
+    //from the first FAT, so the reserved top 4 bits of every entry and the entries between runs are kept, and written to every copy.
+    private void writeFAT() throws IOException {
+        long[] starts = new long[FATRuns.size()], lengths = new long[starts.length], nexts = new long[starts.length];
+        int runCount = 0;
+        for (Map.Entry<Long, long[]> run : FATRuns.entrySet()) {
+            starts[runCount] = run.getKey();
+            lengths[runCount] = run.getValue()[0];
+            nexts[runCount++] = run.getValue()[1];
+        }
+
+        int run = 0;
+        long from = runCount == 0 ? 0 : starts[0];
+        while (run < runCount) {
+            long spanStart = from;
+            long spanLimit = spanStart + FAT_SPAN_ENTRIES;
+            int lastRun = run;
+            long spanEnd = Math.min(starts[run] + lengths[run], spanLimit);
+            while (spanEnd == starts[lastRun] + lengths[lastRun] && lastRun + 1 < runCount
+                && starts[lastRun + 1] - spanEnd <= FAT_GAP_ENTRIES && starts[lastRun + 1] < spanLimit) {
+                lastRun++;
+                spanEnd = Math.min(starts[lastRun] + lengths[lastRun], spanLimit);
+            }
+
+            int spanEntries = (int)(spanEnd - spanStart);
+            ByteBuffer span = ByteBuffer.allocate(spanEntries * 4).order(ByteOrder.LITTLE_ENDIAN);
+            span.asIntBuffer().put(volume.getFAT().entries(spanStart, spanEntries));
+            for (int r = run; r <= lastRun; r++) {
+                long runEnd = starts[r] + lengths[r];
+                for (long clusterNumber = Math.max(spanStart, starts[r]); clusterNumber < Math.min(spanEnd, runEnd); clusterNumber++) {
+                    long value = clusterNumber == runEnd - 1 ? nexts[r] : clusterNumber + 1;
+                    int at = (int)(clusterNumber - spanStart) * 4;
+                    span.putInt(at, (int)((span.getInt(at) & ~FileAllocationTable.ENTRY_MASK) | value));
+                }
+            }
+            for (long copy = 0; copy < volume.BPB_NumFATS.getVal(); copy++) {
+                volume.getStorage().write(volume.FATOffset + copy * volume.bytesPerFAT + spanStart * 4, span.duplicate());
+            }
+
+            if (spanEnd == starts[lastRun] + lengths[lastRun]) {
+                run = lastRun + 1;
+                if (run < runCount) from = starts[run];
+            } else {
+                run = lastRun;
+                from = spanEnd;
+            }
+        }
+    }
+
+    //Slots of one entry that follow each other on disk are written together.
+    private void writeEntries(byte[] entries, long[] slots) throws IOException {
+        int first = 0;
+        for (int slot = 1; slot <= slots.length; slot++) {
+            if (slot < slots.length && slots[slot] == slots[slot - 1] + Volume.bytesPerEntry) continue;
+            volume.getStorage().write(slots[first], ByteBuffer.wrap(entries, first * Volume.bytesPerEntry, (slot - first) * Volume.bytesPerEntry));
+            first = slot;
+        }
+    }
+
+    //LFN entries (if any) followed by the short entry. Built before anything is allocated, so a bad name costs nothing.
+    private byte[] entriesFor(Instant modified) throws IOException {
+        byte[] shortName = shortNameOf(name);
+        boolean longName = shortName == null;
+        if (longName) shortName = generatedShortName();
+        int count = longName ? LongName.entryCount(name) + 1 : 1;
+        ByteBuffer entries = ByteBuffer.allocate(count * Volume.bytesPerEntry).order(ByteOrder.LITTLE_ENDIAN);
+        int at = (count - 1) * Volume.bytesPerEntry;
+        entries.put(at, shortName);
+        entries.put(at + 11, (byte)ATTR.ATTR_ARCHIVE.bitmask);
+        LocalDateTime now = LocalDateTime.now(), written = LocalDateTime.ofInstant(modified, ZoneId.systemDefault());
+        entries.put(at + 13, (byte)(now.getSecond() % 2 * 100 + now.getNano() / 10_000_000)); //DIR_CrtTimeTenth, in 10ms units.
+        entries.putShort(at + 14, FATTime(now));
+        entries.putShort(at + 16, FATDate(now));
+        entries.putShort(at + 18, FATDate(now)); //DIR_LstAccDate
+        entries.putShort(at + 22, FATTime(written));
+        entries.putShort(at + 24, FATDate(written));
+        if (longName) LongName.write(entries, 0, name, LongName.checksumOf(entries, at));
+        return entries.array();
+    }
+
+    //Filled in once the clusters are allocated.
+    private void setFirstCluster(byte[] entries) {
+        ByteBuffer entry = ByteBuffer.wrap(entries, entries.length - Volume.bytesPerEntry, Volume.bytesPerEntry).slice().order(ByteOrder.LITTLE_ENDIAN);
+        long firstCluster = extents.getExtentCount() == 0 ? 0 : extents.getFirstCluster();
+        entry.putShort(20, (short)(firstCluster >>> 16));
+        entry.putShort(26, (short)firstCluster);
+        entry.putInt(28, (int)size);
+    }
+
+    private static short FATTime(LocalDateTime time) {return (short)(time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() / 2);}
+
+    private static short FATDate(LocalDateTime time) {
+        int year = Math.max(1980, Math.min(2107, time.getYear()));
+        return (short)((year - 1980) << 9 | time.getMonthValue() << 5 | time.getDayOfMonth());
+    }
+
+    private static void checkName(String name) throws IOException {
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) throw new IOException("Invalid file name: " + name);
+        if (name.length() > MAX_NAME_LENGTH) throw new IOException("File name is longer than " + MAX_NAME_LENGTH + " characters: " + name);
+        for (char c : name.toCharArray()) {
+            if (c < 0x20 || LONG_NAME_FORBIDDEN.indexOf(c) >= 0) throw new IOException("File name may not contain " + (c < 0x20 ? "control characters" : "'" + c + "'") + ": " + name);
+        }
+    }
+
+    //The 11 byte short name, when name reads back as exactly itself: upper case BASE.EXT or BASE with 1-8 and 0-3 valid characters. null otherwise.
+    private static byte[] shortNameOf(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) dot = name.length(); //No extension, README as well as README.TXT.
+        if (dot < 1 || dot > 8 || name.length() - dot - 1 > 3 || name.endsWith(".")) return null;
+        for (int i = 0; i < name.length(); i++) {
+            if (i != dot && SHORT_NAME_CHARS.indexOf(name.charAt(i)) < 0) return null;
+        }
+        return String.format("%-8s%-3s", name.substring(0, dot), dot < name.length() ? name.substring(dot + 1) : "").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    //BASIS~N.EXT, as Windows generates them: upper case, invalid characters as '_', spaces and dots dropped, the first N not taken in parent.
+    private byte[] generatedShortName() throws IOException {
+        String upper = name.toUpperCase(Locale.ROOT);
+        int dot = upper.lastIndexOf('.');
+        String basis = shortNameChars(dot > 0 ? upper.substring(0, dot) : upper);
+        String extension = shortNameChars(dot > 0 ? upper.substring(dot + 1) : "");
+        if (extension.length() > 3) extension = extension.substring(0, 3);
+        for (int n = 1; n < 1000000; n++) {
+            String tail = "~" + n;
+            String base = basis.substring(0, Math.min(basis.length(), 8 - tail.length())) + tail;
+            if (!parent.contains(extension.isEmpty() ? base : base + "." + extension)) return String.format("%-8s%-3s", base, extension).getBytes(StandardCharsets.US_ASCII);
+        }
+        throw new IOException("No free short name for " + name);
+    }
+
+    private static String shortNameChars(String part) {
+        StringBuilder chars = new StringBuilder();
+        for (char c : part.toCharArray()) {
+            if (c == ' ' || c == '.') continue;
+            chars.append(SHORT_NAME_CHARS.indexOf(c) >= 0 ? c : '_');
+        }
+        return chars.toString();
+    }
+
+    public long getFirstCluster() {return extents.getExtentCount() == 0 ? 0 : extents.getFirstCluster();}
+
+    @Override
+    public String toString() {
+        return "Wrote " + size + " bytes to " + name + " in " + extents.getExtentCount() + (extents.getExtentCount() == 1 ? " extent" : " extents")
+            + (extents.getExtentCount() == 0 ? "" : " from cluster " + printHex(getFirstCluster()))
+            + (dirClustersAdded == 0 ? "" : ", directory grew by " + dirClustersAdded + (dirClustersAdded == 1 ? " cluster" : " clusters"));
+    }
+}
@@ -0,0 +1,103 @@
+package FAT32;
+import java.util.*;
+import java.nio.*;
+
+//Assembles a VFAT long name from the LFN entries in front of a short entry.
+//LFN entries are stored last part first: the first one on disk has 0x40 set in its ordinal, the one just before the short entry has ordinal 1.
+//Each carries 13 UTF-16 characters and the checksum of the short name it belongs to. A sequence that is out of order, interrupted,
+//or whose checksum does not match its short entry is dropped, and the short entry keeps only its 8.3 name (as Windows does).
+//One instance is carried across every cluster of a directory, since a sequence may start in one cluster and end in the next.
+public class LongName {
+    private static final int CHARS_PER_ENTRY = 13;
+    private static final int MAX_ENTRIES = 20; //255 characters.
+    private static final int LAST_LONG_ENTRY = 0x40;
+    private static final int[] CHAR_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30}; //LDIR_Name1, LDIR_Name2, LDIR_Name3.
+
+    private char[] chars = new char[CHARS_PER_ENTRY * MAX_ENTRIES];
+    private int length = -1; //-1 when no sequence is in progress.
+    private int expected; //Ordinal of the next LFN entry, 0 once the sequence is complete.
+    private int checksum;
+
+    //Attribute combination only LFN entries carry. Tested on the low 6 bits, as the spec asks.
+    public static boolean isLongNameEntry(ByteBuffer buf, int offset) {
+        return (buf.get(offset + 11) & 0x3F) == 0x0F;
+    }
+
+    //Takes the next LFN entry of the directory.
+    public void accept(ByteBuffer buf, int offset) {
+        int ordinal = buf.get(offset) & 0xFF;
+        int sequence = ordinal & 0x1F;
+        int entryChecksum = buf.get(offset + 13) & 0xFF;
+        if ((ordinal & LAST_LONG_ENTRY) != 0) {
+            if (sequence == 0 || sequence > MAX_ENTRIES) {
+                reset();
+                return;
+            }
+            checksum = entryChecksum;
+            length = sequence * CHARS_PER_ENTRY; //Full, unless a terminator turns up.
+        } else if (length < 0 || sequence != expected || entryChecksum != checksum) {
+            reset(); //Orphaned or out of order.
+            return;
+        }
+
+        int base = (sequence - 1) * CHARS_PER_ENTRY;
+        for (int i = 0; i < CHARS_PER_ENTRY; i++) {
+            char c = buf.getChar(offset + CHAR_OFFSETS[i]);
+            if (c == 0x0000) { //Terminator, only in the last part. The rest is 0xFFFF padding.
+                if ((ordinal & LAST_LONG_ENTRY) != 0) length = base + i;
+                break;
+            }
+            chars[base + i] = c;
+        }
+        expected = sequence - 1;
+    }
+
+    //Long name of the short entry the sequence ends at, or null if there is no complete sequence that belongs to it. Always resets.
+    public String take(ByteBuffer buf, int offset) {
+        String name = null;
+        if (length > 0 && expected == 0 && checksum == checksumOf(buf, offset)) name = new String(chars, 0, length);
+        reset();
+        return name;
+    }
+
+    public void reset() {
+        length = -1;
+        expected = 0;
+    }
+
+    //Number of LFN entries name takes on disk.
+    public static int entryCount(String name) {
+        return (name.length() + CHARS_PER_ENTRY - 1) / CHARS_PER_ENTRY;
+    }
+
+    //Writes the LFN entries of name at offset, last part first, as they go in front of the short entry whose checksum is given.
+    //buf must be little endian.
+    public static void write(ByteBuffer buf, int offset, String name, int checksum) {
+        int count = entryCount(name);
+        for (int entry = 0; entry < count; entry++) {
+            int sequence = count - entry;
+            int at = offset + entry * Volume.bytesPerEntry;
+            for (int i = 0; i < Volume.bytesPerEntry; i++) buf.put(at + i, (byte)0);
+            buf.put(at, (byte)(sequence | (entry == 0 ? LAST_LONG_ENTRY : 0)));
+            buf.put(at + 11, (byte)Util.ATTR.ATTR_LONG_NAME.bitmask);
+            buf.put(at + 13, (byte)checksum);
+            int base = (sequence - 1) * CHARS_PER_ENTRY;
+            for (int i = 0; i < CHARS_PER_ENTRY; i++) {
+                char c = base + i < name.length() ? name.charAt(base + i) : base + i == name.length() ? 0x0000 : (char)0xFFFF;
+                buf.putChar(at + CHAR_OFFSETS[i], c);
+            }
+        }
+    }
+
+    //Checksum of the 11 byte short name, per the MS spec.
+    public static int checksumOf(ByteBuffer buf, int offset) {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) sum = (((sum & 1) << 7) + (sum >> 1) + (buf.get(offset + i) & 0xFF)) & 0xFF;
+        return sum;
+    }
+
+    //Case-folded lookup key. Short names are stored upper case, so folding to upper case lets one key space hold both.
+    public static String keyOf(String name) {
+        return name.toUpperCase(Locale.ROOT);
+    }
+}
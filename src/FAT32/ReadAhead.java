@@ -0,0 +1,173 @@
+package FAT32;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+
+//Detects sequential reads of a cluster chain and prefetches the next clusters on a background thread,
+//so storage keeps working while the reader consumes the previous cluster.
+//A stream starts prefetching after MIN_SEQUENTIAL accesses in a row, so a one-off small read does not start a window.
+//The window of each stream doubles whenever the reader consumes all of it, and halves when prefetched clusters are abandoned.
+public class ReadAhead implements Closeable {
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_STREAMS = 16;
+    private static final int MIN_SEQUENTIAL = 2;
+
+    //Reads count contiguous clusters starting at clusterNumber with one storage access.
+    public interface Loader {
+        ByteBuffer load(long clusterNumber, int count) throws IOException;
+    }
+
+    private static class Stream {
+        ExtentMap extents;
+        long lastIndex = -1; //Last cluster index the reader asked for.
+        long prefetchedUpTo = -1; //Last cluster index handed to the worker.
+        int run; //Accesses in a row, each to the cluster after the last one.
+        int window = MIN_WINDOW;
+    }
+
+    private int maxWindow;
+    private int bytesPerCluster;
+    private Loader loader;
+    private ClusterCache cache; //Clusters already cached are not prefetched. May be null.
+    private Map<Long, Stream> streams; //By first cluster.
+    private Map<Long, CompletableFuture<ByteBuffer>> inflight = new ConcurrentHashMap<>(); //By cluster number.
+    private ExecutorService worker;
+    private long prefetched;
+    private long used;
+    private long wasted;
+
+    public ReadAhead(int maxWindow, int bytesPerCluster, Loader loader, ClusterCache cache) {
+        this.maxWindow = Math.max(maxWindow, MIN_WINDOW);
+        this.bytesPerCluster = bytesPerCluster;
+        this.loader = loader;
+        this.cache = cache;
+        this.streams = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Stream> eldest) {
+                if (size() <= MAX_STREAMS) return false;
+                discard(eldest.getValue(), -1);
+                return true;
+            }
+        };
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FAT32-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //Called before the reader fetches the clusterIndex'th cluster of extents.
+    public synchronized void access(ExtentMap extents, long clusterIndex) {
+        Stream stream = streams.get(extents.getFirstCluster());
+        if (stream == null || stream.extents != extents) {
+            if (stream != null) discard(stream, -1);
+            stream = new Stream();
+            stream.extents = extents;
+            streams.put(extents.getFirstCluster(), stream);
+        }
+
+        boolean sequential = stream.lastIndex >= 0 && clusterIndex == stream.lastIndex + 1; //A new stream's first access is not.
+        if (!sequential) {
+            if (discard(stream, clusterIndex) > 0) stream.window = Math.max(MIN_WINDOW, stream.window / 2);
+            stream.prefetchedUpTo = clusterIndex;
+            stream.run = 0;
+        } else if (clusterIndex == stream.prefetchedUpTo) {
+            stream.window = Math.min(maxWindow, stream.window * 2); //Consumed the whole window.
+        }
+        stream.lastIndex = clusterIndex;
+        if (sequential) stream.run++;
+
+        if (stream.run >= MIN_SEQUENTIAL && stream.prefetchedUpTo - clusterIndex < stream.window / 2) prefetch(stream, clusterIndex + 1, clusterIndex + stream.window);
+    }
+
+    //Prefetched cluster, waiting for it if it is still being read. null if it was never prefetched.
+    public ByteBuffer take(long clusterNumber) {
+        CompletableFuture<ByteBuffer> future = inflight.remove(clusterNumber);
+        if (future == null) return null;
+        try {
+            ByteBuffer buffer = future.join();
+            synchronized (this) {used++;}
+            return buffer;
+        } catch (CompletionException | CancellationException e) {
+            return null; //Reader falls back to a synchronous read.
+        }
+    }
+
+    private void prefetch(Stream stream, long fromIndex, long upToIndex) {
+        ExtentMap extents = stream.extents;
+        upToIndex = Math.min(upToIndex, extents.getClusterCount() - 1);
+        long index = Math.max(stream.prefetchedUpTo + 1, fromIndex);
+        while (index <= upToIndex) {
+            //Batch the run of contiguous clusters inside this extent into one read.
+            int extent = extents.extentOf(index);
+            long first = extents.clusterAt(index);
+            long extentEnd = extents.getStart(extent) + extents.getLength(extent);
+            int count = (int)Math.min(upToIndex - index + 1, extentEnd - first);
+            submit(first, count);
+            index += count;
+        }
+        stream.prefetchedUpTo = Math.max(stream.prefetchedUpTo, upToIndex);
+    }
+
+    private void submit(long first, int count) {
+        List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(count);
+        long start = -1;
+        for (long clusterNumber = first; clusterNumber < first + count; clusterNumber++) {
+            CompletableFuture<ByteBuffer> future = null;
+            if ((cache == null || !cache.contains(clusterNumber)) && !inflight.containsKey(clusterNumber)) {
+                future = new CompletableFuture<>();
+                inflight.put(clusterNumber, future);
+                if (start < 0) start = clusterNumber;
+                prefetched++;
+            }
+            futures.add(future);
+        }
+        if (start < 0) return;
+        final long readFrom = start;
+        worker.execute(() -> {
+            int readCount = (int)(first + count - readFrom);
+            try {
+                ByteBuffer run = loader.load(readFrom, readCount);
+                for (int i = 0; i < readCount; i++) {
+                    CompletableFuture<ByteBuffer> future = futures.get((int)(readFrom - first) + i);
+                    if (future != null) future.complete(run.slice(i*bytesPerCluster, bytesPerCluster).order(ByteOrder.LITTLE_ENDIAN));
+                }
+            } catch (IOException | RuntimeException e) {
+                for (CompletableFuture<ByteBuffer> future : futures) if (future != null) future.completeExceptionally(e);
+            }
+        });
+    }
+
+    //Drops the stream's prefetched clusters that were not read, except keepIndex. Returns how many were dropped.
+    private int discard(Stream stream, long keepIndex) {
+        int dropped = 0;
+        for (long index = stream.lastIndex + 1; index <= stream.prefetchedUpTo; index++) {
+            if (index == keepIndex) continue;
+            CompletableFuture<ByteBuffer> future = inflight.remove(stream.extents.clusterAt(index));
+            if (future != null) {
+                future.cancel(false);
+                dropped++;
+            }
+        }
+        wasted += dropped;
+        return dropped;
+    }
+
+    //Drops every stream and its prefetched clusters, after a write made them stale. Reads in progress are cancelled, so what
+    //they bring back is never taken into the cluster cache.
+    public synchronized void discardAll() {
+        for (Stream stream : streams.values()) discard(stream, -1);
+        streams.clear();
+    }
+
+    @Override
+    public void close() {worker.shutdownNow();}
+
+    @Override
+    public synchronized String toString() {
+        return "Read-ahead: up to " + maxWindow + " clusters per stream, " + streams.size() + " streams, "
+            + prefetched + " prefetched, " + used + " used, " + wasted + " wasted"
+            + (prefetched == 0 ? "" : String.format(" (%.1f%% hit rate)", 100.0*used/prefetched));
+    }
+}
@@ -0,0 +1,158 @@
+package FAT32;
+import static FAT32.Volume.rootDirName;
+import static FAT32.Volume.pathDelimiter;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.io.*;
+
+//Volume-wide name index: every 8.3 name and case-folded long name on the volume in one sorted array, with the parent directory
+//cluster and the entry's index within that directory. An entry with a long name is listed under both of its names.
+//Built with one walk of the tree, on first use. Glob queries binary search the literal prefix of the pattern and only test the
+//names that share it.
+public class SearchIndex {
+    private String[] names; //Sorted lookup keys.
+    private String[] displayNames; //Name shown for each key's entry: the long name when there is one.
+    private int[] parents; //Index into dirPaths/dirClusters of each name's parent directory.
+    private int[] entryIndices; //Index of each name's entry within its parent directory.
+    private String[] dirPaths;
+    private long[] dirClusters;
+
+    public static SearchIndex build(Volume volume) throws IOException {
+        Builder builder = new Builder(volume);
+        builder.walk();
+        return builder.finish();
+    }
+
+    public int size() {return names.length;}
+    public long getParentCluster(int hit) {return dirClusters[parents[hit]];}
+    public int getEntryIndex(int hit) {return entryIndices[hit];}
+
+    //Full path of the hit'th name.
+    public String getPath(int hit) {
+        String parent = dirPaths[parents[hit]];
+        return parent.equals(rootDirName) ? rootDirName + displayNames[hit] : parent + pathDelimiter + displayNames[hit];
+    }
+
+    //Indices of every name matching glob, where * matches any run of characters and ? any single character.
+    public List<Integer> find(String glob) {
+        int wildcard = firstWildcard(glob);
+        String prefix = glob.substring(0, wildcard);
+        Pattern pattern = wildcard == glob.length() ? null : globToPattern(glob);
+        List<Integer> hits = new ArrayList<>();
+        Set<Long> found = new HashSet<>(); //An entry matching under both of its names is reported once.
+        for (int i = lowerBound(prefix); i < names.length && names[i].startsWith(prefix); i++) {
+            if (pattern == null ? !names[i].equals(glob) : !pattern.matcher(names[i]).matches()) continue;
+            if (found.add(((long)parents[i] << 32) | entryIndices[i])) hits.add(i);
+        }
+        return hits;
+    }
+
+    private int lowerBound(String key) {
+        int low = 0, high = names.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (names[mid].compareTo(key) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int firstWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') return i;
+        }
+        return glob.length();
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') continue;
+            if (i > literalStart) regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            regex.append(c == '*' ? ".*" : ".");
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) regex.append(Pattern.quote(glob.substring(literalStart)));
+        return Pattern.compile(regex.toString());
+    }
+
+    //Collects names into growing parallel arrays during the walk, then sorts them once.
+    private static class Builder {
+        private Volume volume;
+        private String[] names = new String[1024];
+        private String[] displayNames = new String[1024];
+        private int[] parents = new int[1024];
+        private int[] entryIndices = new int[1024];
+        private int count;
+        private List<String> dirPaths = new ArrayList<>();
+        private List<Long> dirClusters = new ArrayList<>();
+
+        Builder(Volume volume) {this.volume = volume;}
+
+        void walk() throws IOException {
+            Set<Long> visited = new HashSet<>(); //A corrupt tree may link back to an ancestor.
+            long rootCluster = volume.getRootCluster();
+            visited.add(rootCluster);
+            dirPaths.add(rootDirName);
+            dirClusters.add(rootCluster);
+            for (int dir = 0; dir < dirPaths.size(); dir++) { //dirPaths grows as subdirectories are found, breadth first.
+                List<DirEntry> entries = volume.entriesAt(dirClusters.get(dir), false); //Kept out of the extent cache, as du does.
+                for (int entryIndex = 0; entryIndex < entries.size(); entryIndex++) {
+                    DirEntry entry = entries.get(entryIndex);
+                    String name = entry.getDIR_NameString();
+                    if (name.equals(".") || name.equals("..")) continue;
+                    String displayName = entry.getDisplayName();
+                    add(name, displayName, dir, entryIndex);
+                    if (entry.getLongKey() != null && !entry.getLongKey().equals(name)) add(entry.getLongKey(), displayName, dir, entryIndex);
+                    long firstCluster = entry.getNextClusterNumber();
+                    if (entry.isDirectory() && firstCluster != 0 && visited.add(firstCluster)) {
+                        String parent = dirPaths.get(dir);
+                        dirPaths.add(parent.equals(rootDirName) ? rootDirName + displayName : parent + pathDelimiter + displayName);
+                        dirClusters.add(firstCluster);
+                    }
+                }
+            }
+        }
+
+        private void add(String name, String displayName, int parent, int entryIndex) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count*2);
+                displayNames = Arrays.copyOf(displayNames, count*2);
+                parents = Arrays.copyOf(parents, count*2);
+                entryIndices = Arrays.copyOf(entryIndices, count*2);
+            }
+            names[count] = name;
+            displayNames[count] = displayName;
+            parents[count] = parent;
+            entryIndices[count] = entryIndex;
+            count++;
+        }
+
+        SearchIndex finish() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            String[] unsorted = names;
+            Arrays.parallelSort(order, (a, b) -> unsorted[a].compareTo(unsorted[b]));
+
+            SearchIndex index = new SearchIndex();
+            index.names = new String[count];
+            index.displayNames = new String[count];
+            index.parents = new int[count];
+            index.entryIndices = new int[count];
+            for (int i = 0; i < count; i++) {
+                index.names[i] = names[order[i]];
+                index.displayNames[i] = displayNames[order[i]];
+                index.parents[i] = parents[order[i]];
+                index.entryIndices[i] = entryIndices[order[i]];
+            }
+            index.dirPaths = dirPaths.toArray(new String[0]);
+            index.dirClusters = new long[dirClusters.size()];
+            for (int dir = 0; dir < index.dirClusters.length; dir++) index.dirClusters[dir] = dirClusters.get(dir);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package FAT32;
+import static FAT32.Util.*;
+import static FAT32.Volume.rootDirName;
+import java.util.*;
+import java.io.*;
+
+//One user's cursor over a shared Volume: the current directory and path resolution relative to it.
+//A Session is meant for a single thread. Open one per thread (or per user) over the same Volume.
+public class Session {
+    private Volume volume;
+    private Dir currentDir;
+
+    public Session(Volume volume) {
+        this.volume = volume;
+        this.currentDir = volume.getRootDir();
+    }
+
+    public Volume getVolume() {return volume;}
+    public Dir getCurrentDir() {return currentDir;}
+
+    //Moves the cursor. Returns false, leaving it where it was, if pathString is not a directory.
+    public boolean cd(String pathString) throws IOException {
+        Dir newDir = dirAt(pathString);
+        if (newDir == null) return false;
+        currentDir = newDir;
+        return true;
+    }
+
+    //Reads the current directory again, after a write to the Volume.
+    public void refresh() throws IOException {
+        currentDir = currentDir.isRoot() ? volume.getRootDir() : volume.clusterToDir(currentDir.getClusterNumber(), currentDir.getPathList());
+    }
+
+    protected Dir dirAt(String pathString) throws IOException {
+        if (pathString == null || pathString == "") throw new IllegalStateException("changeDir(String pathString) called for empty pathString="+pathString);
+        List<String> pathList = pathStringToList(pathString);
+        return dirAt(pathList);
+    }
+
+    //Resolves one component at a time through the dentry cache. A directory is only read when a lookup misses, or at the end of the path.
+    private Dir dirAt(List<String> pathList) throws IOException {
+        Dir dir = currentDir;
+        if (pathList.get(0).equals(rootDirName)) {
+            dir = volume.getRootDir();
+            pathList.remove(0);
+        }
+        List<String> currentPathList = new ArrayList<>(dir.getPathList()); //Make a copy of the current dir's pathList, will be modified as the pathList is traversed
+        long clusterNumber = dir.getClusterNumber();
+        DentryCache dentryCache = volume.getDentryCache();
+
+        for (String s : pathList) {
+            if (s.equals(".")) continue; //No-opp for "."
+            if (s.equals("..")) {
+                if (currentPathList.size() == 1) { continue; //No-opp for ".." at rootDir
+                } else {currentPathList.remove(currentPathList.size()-1);} //Moving up, remove last field.
+            } else {currentPathList.add(s);} //Moving down, add one field.
+
+            DirEntry nextDir;
+            DentryCache.Lookup lookup = dentryCache.lookup(clusterNumber, s);
+            if (lookup.cached) {
+                nextDir = lookup.entry;
+            } else {
+                if (dir == null) dir = volume.clusterToDir(clusterNumber, new ArrayList<>(currentPathList)); //Intermediate, only used for the lookup.
+                nextDir = dir.contains(s) ? dir.entryWithName(s) : null;
+                dentryCache.put(clusterNumber, s, nextDir == null ? null : nextDir.detach()); //Not the whole directory cluster.
+            }
+            if (nextDir == null || !nextDir.isDirectory()) return null;
+            clusterNumber = nextDir.getNextClusterNumber();
+            if (clusterNumber == 0) clusterNumber = volume.getRootCluster();
+            dir = null; //Only the cluster is known until something needs the entries.
+        }
+        if (dir == null) dir = volume.clusterToDir(clusterNumber, currentPathList);
+        return dir;
+    }
+}
@@ -1,99 +1,78 @@
 package FAT32;
 import static FAT32.Util.*;
-import static FAT32.Util.Dir.dirAt;
-import static FAT32.Util.Dir.parseClusterAsDir;
-import static FAT32.Util.Dir.fileAsByteArray;
 import java.util.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
+//Interactive client over one Volume and one Session. All file system state lives in those two; the shell only parses commands and prints.
 public class Shell {
-    protected static RandomAccessFile file;
-    protected static Dir currentDir;
-    protected static Dir rootDir;
+    protected static Volume volume;
+    protected static Session session;
     protected static Scanner in = new Scanner(System.in);
-    protected static long[] FAT;
-    
-    // Microsoft Name  Field                       Offset  Size    Value
-    // BPB_BytesPerSec Bytes Per Sector            0x0B    16 Bits Always 512 Bytes
-    // BPB_SecPerClus  Sectors Per Cluster         0x0D    8 Bits  1,2,4,8,16,32,64,128
-    // BPB_RsvdSecCnt  Number of Reserved Sectors  0x0E    16 Bits Usually 0x20
-    // BPB_NumFATS     Number of FATs              0x10    8 Bits  Always 2
-    // BPB_FATSz32     Sectors Per FAT             0x24    32 Bits Depends on disk size
-    // BPB_RootClus     Root Dir First Cluster      0x2C    32 Bits Usually 0x2
-    protected static Field BPB_BytesPerSec = new Field("BPB_BytesPerSec", 0x0B, 2);
-    protected static Field BPB_SecPerClus = new Field("BPB_SecPerClus", 0x0D, 1);
-    protected static Field BPB_RsvdSecCnt = new Field("BPB_RsvdSecCnt", 0x0E, 2);
-    protected static Field BPB_NumFATS = new Field("BPB_NumFATS", 0x10, 1);
-    protected static Field BPB_FATSz32 = new Field("BPB_FATSz32", 0x24, 4);
-    protected static Field BPB_RootClus = new Field("BPB_RootClus", 0x2C, 4);
-    protected static List<Field> infoFields = List.of(BPB_BytesPerSec,BPB_SecPerClus,BPB_RsvdSecCnt,BPB_NumFATS,BPB_FATSz32); //Printed.
-    protected static List<Field> privateFields = List.of(BPB_RootClus); //Not printed.
-    protected static List<Field> fields = new ArrayList<>();
-    
-    protected static final String rootDirName = "/";
-    protected static final String pathDelimiter = "/";
-
-    //Shorthand members to make code more readable.
-    protected static int bytesPerEntry = 32;
-    protected static int bytesPerCluster;
-    protected static int bytesPerFAT;
-    protected static int entriesPerCluster;
-    protected static int FATOffset;
-    protected static int cluster02Offset;
-    protected static int cluster00Offset;
+    protected static PrintStream out = System.out;
+    protected static boolean commandFailed; //Set by printError, reported per command in batch mode.
+
+    //Startup options, given as --name=value after the image path.
+    protected static String imagePath;
+    protected static Map<String, String> options = new HashMap<>();
     
     public static void main (String[] args) throws IOException {
-        String path = args[0].toUpperCase();
-        init(path);
+        initOptions(args);
+        if (imagePath == null) {
+            System.out.println("Error: Improper number of arguments. Usage: Shell <FAT32_PATH> [--option=value ...]. args=" + Arrays.toString(args));
+            return;
+        }
+        init(imagePath);
+        if (options.containsKey("batch")) {
+            batch(options.get("batch"));
+            return;
+        }
 
         while (true) {
-            System.out.print(currentDir.getPathString() + "] ");
+            out.print(session.getCurrentDir().getPathString() + "] ");
             parseInput(in.nextLine());
         }
     }
-    
-    private static void init(String path) throws IOException {
-        file = new RandomAccessFile(path, "r");
-        initFields();
-        initShorthands();
-        initFAT();
-        initRootDir();
-    }
-
-        private static void initFields() throws IOException {
-            fields.addAll(infoFields);
-            fields.addAll(privateFields);
-            for (Field field : fields) {
-                file.seek(field.getOffset());
-                field.setVal(readNumeric(field.getBytes()));
-            }
-        }
 
-        private static void initShorthands() {
-            bytesPerCluster = (int)(BPB_SecPerClus.getVal() * BPB_BytesPerSec.getVal());
-            bytesPerFAT = (int)(BPB_FATSz32.getVal() * bytesPerCluster);
-            entriesPerCluster = bytesPerCluster/bytesPerEntry;
-            FATOffset = (int)(BPB_RsvdSecCnt.getVal() * BPB_BytesPerSec.getVal());
-            cluster02Offset = FATOffset + 2*bytesPerFAT;
-            cluster00Offset = cluster02Offset - 2*bytesPerCluster;
+    //Runs commands from a file (--batch=FILE) or stdin (--batch) with no prompts. All output goes through one large buffer,
+    //and every command is followed by a "STATUS <n> OK|ERROR" line. A failing command does not end the batch.
+    private static void batch(String source) throws IOException {
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        Reader reader = source.equals("true") ? new InputStreamReader(System.in) : new FileReader(source);
+        try (BufferedReader commands = new BufferedReader(reader, 1 << 16)) {
+            long commandNumber = 0;
+            for (String line = commands.readLine(); line != null; line = commands.readLine()) {
+                if (line.isBlank()) continue;
+                commandNumber++;
+                commandFailed = false;
+                try {
+                    parseInput(line);
+                } catch (IOException | RuntimeException e) {
+                    printError("Error: " + e);
+                }
+                out.println("STATUS " + commandNumber + (commandFailed ? " ERROR" : " OK"));
+            }
         }
-
-        private static void initFAT() throws IOException {
-            FAT = new long[bytesPerFAT/4]; //Each FAT entry is a 4 byte numeric value.
-            file.seek(FATOffset); //Seek to start of FAT.
-            byte[] raw = readBytes(bytesPerFAT);
-            for (int FATIndex = 0; FATIndex < FAT.length; FATIndex++) {
-                FAT[FATIndex] = parseBytesToNumeric(raw, FATIndex*4, 4);
+        out.flush();
+        volume.close();
+    }
+    
+    private static void initOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                imagePath = arg;
+                continue;
             }
+            String[] option = arg.substring(2).split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
         }
+    }
 
-        private static void initRootDir() throws IOException {
-            List<DirEntry> entries = parseClusterAsDir(2);
-            List<String> pathList = new ArrayList<>();
-            pathList.add(rootDirName);
-            rootDir = new Dir(entries, pathList);
-            currentDir = rootDir;
-        }
+    private static void init(String path) throws IOException {
+        volume = Volume.open(path, options);
+        session = new Session(volume);
+    }
 
     private static void parseInput(String input) throws IOException {
         if (input == null || input.equals("")) throw new IllegalArgumentException("Empty input"); 
@@ -101,6 +80,9 @@ public class Shell {
         String[] split = input.split(" ");
         String command = split[0];
         String[] args = Arrays.copyOfRange(split, 1, split.length); 
+        Stats stats = volume.getStats();
+        long start = stats == null ? 0 : System.nanoTime();
+        long clusters = stats == null ? 0 : stats.getClustersRead();
         
         switch (command) {
             case "stop": 
@@ -124,103 +106,327 @@ public class Shell {
             case "read": 
                 read(args);
                 break;
+            case "du": 
+                du(args);
+                break;
+            case "df": 
+                df(args);
+                break;
+            case "check": 
+                check();
+                break;
+            case "frag": 
+                frag(args);
+                break;
+            case "get": 
+                get(args);
+                break;
+            case "put": 
+                put(args);
+                break;
+            case "extract": 
+                extract(args);
+                break;
+            case "find": 
+                find(args);
+                break;
+            case "index": 
+                index();
+                break;
+            case "cache": 
+                cache();
+                break;
+            case "stats": 
+                stats(args);
+                break;
             default:
-                System.out.println("Invalid command: " + command); 
+                printError("Invalid command: " + command); 
+                return;
         }
+        if (stats != null && !command.equals("stats")) stats.commandDone(command, System.nanoTime() - start, stats.getClustersRead() - clusters); //stats -reset would skew itself.
     }
 
-    private static void stop() {
+    private static void printError(String message) {
+        out.println(message);
+        commandFailed = true;
+    }
+
+    private static void stop() throws IOException {
+        out.flush();
         in.close();
+        volume.close();
         System.exit(0);
     }
     
     private static void info() {
-        for (Field infoField : infoFields) {
-            System.out.println(infoField);
+        for (Field infoField : volume.getInfoFields()) {
+            out.println(infoField);
         }
     }
     
     private static void ls() {
-        System.out.println(currentDir.getNamesString());
+        out.println(session.getCurrentDir().getNamesString());
     }
     
     private static void stat(String[] args) {
         if (args.length != 1) {
-            System.out.println("Error: Improper number of arguments for command: stat. args=" + Arrays.toString(args));
+            printError("Error: Improper number of arguments for command: stat. args=" + Arrays.toString(args));
             return;
         }
 
-        String FILE_NAME = args[0].toUpperCase();
+        Dir currentDir = session.getCurrentDir();
+        String FILE_NAME = args[0].toUpperCase(Locale.ROOT);
         
         if (!currentDir.contains(FILE_NAME)) {
-            System.out.println("Error: file/directory does not exist");
+            printError("Error: file/directory does not exist");
             return;
         }
 
-        System.out.println(currentDir.entryWithName(FILE_NAME));
+        out.println(currentDir.entryWithName(FILE_NAME));
     }
     
     private static void size(String[] args) {
         if (args.length != 1) {
-            System.out.println("Error: Improper number of arguments for command: size. args=" + Arrays.toString(args));
+            printError("Error: Improper number of arguments for command: size. args=" + Arrays.toString(args));
             return;
         }
 
-        String fileName = args[0].toUpperCase();
+        Dir currentDir = session.getCurrentDir();
+        String fileName = args[0].toUpperCase(Locale.ROOT);
         if (currentDir.contains(fileName)) {
             long fileSize = currentDir.entryWithName(fileName).getFileSize();
-            System.out.println("Size of "+fileName+" is "+fileSize+" bytes");
+            out.println("Size of "+fileName+" is "+fileSize+" bytes");
         } else {
-            System.out.println("Error: file/directory does not exist");
+            printError("Error: file/directory does not exist");
         } 
     }
     
     private static void cd(String[] args) throws IOException {
         if (args.length != 1) {
-            System.out.println("Error: Improper number of arguments for command: cd. args=" + Arrays.toString(args));
+            printError("Error: Improper number of arguments for command: cd. args=" + Arrays.toString(args));
             return;
         }
 
-        String pathString = args[0].toUpperCase();
-        Dir newDir = dirAt(pathString);
-        if (newDir == null) System.out.println("Error: "+ pathString +" is not a directory");
-        else currentDir = newDir;
+        String pathString = args[0].toUpperCase(Locale.ROOT);
+        if (!session.cd(pathString)) printError("Error: "+ pathString +" is not a directory");
     }
     
+    private static void du(String[] args) throws IOException {
+        if (args.length > 1) {
+            printError("Error: Improper number of arguments for command: du. args=" + Arrays.toString(args));
+            return;
+        }
+
+        Dir dir = session.getCurrentDir();
+        if (args.length == 1) {
+            String pathString = args[0].toUpperCase(Locale.ROOT);
+            dir = session.dirAt(pathString);
+            if (dir == null) {
+                printError("Error: "+ pathString +" is not a directory");
+                return;
+            }
+        }
+        out.println(DiskUsage.of(volume, dir.getClusterNumber()));
+    }
+
+    private static void df(String[] args) throws IOException {
+        if (args.length > 1 || (args.length == 1 && !args[0].equals("-scan"))) {
+            printError("Error: Improper arguments for command: df. Usage: df [-scan]. args=" + Arrays.toString(args));
+            return;
+        }
+
+        long clusters = volume.getClusterLimit() - 2;
+        out.println(clusters + " clusters of " + volume.getBytesPerCluster() + " bytes, " + clusters*volume.getBytesPerCluster() + " bytes");
+        FSInfo fsInfo = FSInfo.read(volume);
+        out.println(fsInfo);
+        if (args.length == 0) return;
+
+        FreeSpace space = FreeSpace.scan(volume);
+        out.println(space);
+        if (fsInfo.getFreeCount() == FSInfo.UNKNOWN) return;
+        long drift = fsInfo.getFreeCount() - space.getFreeClusters();
+        out.println(drift == 0 ? "FSInfo free count matches the FAT" : "FSInfo free count is off by " + drift + " clusters");
+    }
+
+    private static void check() throws IOException {
+        ConsistencyCheck check = ConsistencyCheck.run(volume);
+        out.println(check);
+        if (check.getProblemCount() > 0) commandFailed = true; //So batch runs can tell a damaged image apart.
+    }
+
+    private static void frag(String[] args) throws IOException {
+        if (args.length > 1 || (args.length == 1 && !args[0].matches("\\d+"))) {
+            printError("Error: Improper arguments for command: frag. Usage: frag [COUNT]. args=" + Arrays.toString(args));
+            return;
+        }
+
+        int COUNT = args.length == 1 ? Integer.parseInt(args[0]) : 10;
+        out.println(Fragmentation.of(volume, COUNT));
+    }
+
+    private static void get(String[] args) throws IOException {
+        if (args.length != 2) {
+            printError("Error: Improper number of arguments for command: get. args=" + Arrays.toString(args));
+            return;
+        }
+
+        Dir currentDir = session.getCurrentDir();
+        String FILE_NAME = args[0].toUpperCase(Locale.ROOT);
+        String HOST_PATH = args[1]; //Host file system, so case is kept.
+        if (!currentDir.contains(FILE_NAME) || currentDir.entryWithName(FILE_NAME).isDirectory()) {
+            printError("Error: "+ FILE_NAME +" is not a file");
+            return;
+        }
+
+        long written;
+        try (FileChannel target = FileChannel.open(Paths.get(HOST_PATH), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            written = volume.exportFile(currentDir.entryWithName(FILE_NAME), target);
+        }
+        out.println("Wrote "+written+" bytes to "+HOST_PATH);
+    }
+
+    private static void put(String[] args) throws IOException {
+        if (args.length != 2) {
+            printError("Error: Improper number of arguments for command: put. args=" + Arrays.toString(args));
+            return;
+        }
+
+        Path HOST_FILE = Paths.get(args[0]);
+        String DEST = args[1]; //Case is kept for the new name.
+        if (!Files.isRegularFile(HOST_FILE)) {
+            printError("Error: "+ HOST_FILE +" is not a file on the host");
+            return;
+        }
+
+        //DEST is a directory to put the file in under its host name, or the path of the new file.
+        Dir parent = session.dirAt(DEST.toUpperCase(Locale.ROOT));
+        String name = HOST_FILE.getFileName().toString();
+        if (parent == null) {
+            parent = session.dirAt(parentPath(DEST).toUpperCase(Locale.ROOT));
+            name = lastName(DEST);
+            if (parent == null) {
+                printError("Error: "+ parentPath(DEST).toUpperCase(Locale.ROOT) +" is not a directory");
+                return;
+            }
+        }
+
+        try {
+            out.println(Ingest.put(volume, parent, name, HOST_FILE));
+        } catch (IOException e) {
+            printError("Error: " + e.getMessage());
+        }
+        session.refresh();
+    }
+
+    private static void extract(String[] args) throws IOException {
+        if (args.length != 2) {
+            printError("Error: Improper number of arguments for command: extract. args=" + Arrays.toString(args));
+            return;
+        }
+
+        String PATH = args[0].toUpperCase(Locale.ROOT);
+        Path HOST_DIR = Paths.get(args[1]); //Host file system, so case is kept.
+        List<DirEntry> entries; //What to extract: the directory's entries, or the one file.
+        Dir dir = session.dirAt(PATH);
+        if (dir != null) {
+            entries = dir.getEntries();
+        } else {
+            Dir parent = session.dirAt(parentPath(PATH));
+            String name = lastName(PATH);
+            if (parent == null || !parent.contains(name)) {
+                printError("Error: "+ PATH +" does not exist");
+                return;
+            }
+            entries = List.of(parent.entryWithName(name));
+        }
+
+        Extraction extraction = Extraction.run(volume, entries, HOST_DIR, Runtime.getRuntime().availableProcessors());
+        out.println(extraction);
+        if (extraction.getFailureCount() > 0) commandFailed = true;
+    }
+
+    //Directory part of pathString: "." when it has none, the root for "/NAME".
+    private static String parentPath(String pathString) {
+        int slash = pathString.lastIndexOf(Volume.pathDelimiter);
+        return slash < 0 ? "." : slash == 0 ? Volume.rootDirName : pathString.substring(0, slash);
+    }
+
+    private static String lastName(String pathString) {
+        return pathString.substring(pathString.lastIndexOf(Volume.pathDelimiter) + 1);
+    }
+
+    private static void find(String[] args) throws IOException {
+        if (args.length != 2 || !args[0].equals("-name")) {
+            printError("Error: Improper arguments for command: find. Usage: find -name PATTERN. args=" + Arrays.toString(args));
+            return;
+        }
+
+        String PATTERN = args[1].toUpperCase(Locale.ROOT);
+        SearchIndex searchIndex = volume.getSearchIndex();
+        for (int hit : searchIndex.find(PATTERN)) out.println(searchIndex.getPath(hit));
+    }
+
+    private static void index() throws IOException {
+        SidecarIndex sidecarIndex = volume.rebuildIndex();
+        out.println("Indexed "+sidecarIndex.getDirCount()+" directories and "+sidecarIndex.getChainCount()+" chains to "+SidecarIndex.pathFor(imagePath));
+    }
+
+    private static void cache() {
+        out.println(volume.getDentryCache());
+        out.println(volume.getClusterCache() == null ? "Cluster cache: disabled" : volume.getClusterCache());
+        out.println(volume.getReadAhead() == null ? "Read-ahead: disabled" : volume.getReadAhead());
+    }
+
+    private static void stats(String[] args) {
+        Stats stats = volume.getStats();
+        if (stats == null) {
+            printError("Error: statistics are off. Start the shell with --stats");
+            return;
+        } if (args.length > 1 || (args.length == 1 && !args[0].equals("-reset"))) {
+            printError("Error: Improper arguments for command: stats. Usage: stats [-reset]. args=" + Arrays.toString(args));
+            return;
+        }
+
+        out.println(stats);
+        if (args.length == 1) stats.reset();
+    }
+
     private static void read(String[] args) throws IOException {
         if (args.length != 3) {
-            System.out.println("Error: Improper number of arguments for command: read. args=" + Arrays.toString(args));
+            printError("Error: Improper number of arguments for command: read. args=" + Arrays.toString(args));
             return;
-        }        
+        }
 
-        String FILE_NAME = args[0].toUpperCase();
-        int OFFSET = Integer.parseInt(args[1]);
+        Dir currentDir = session.getCurrentDir();
+        String FILE_NAME = args[0].toUpperCase(Locale.ROOT);
+        long OFFSET = Long.parseLong(args[1]);
         int NUMBYTES = Integer.parseInt(args[2]);
         
         if (OFFSET < 0) {
-            System.out.println("Error: OFFSET must be a positive value");
+            printError("Error: OFFSET must be a positive value");
             return;
         } if (NUMBYTES < 0) {
-            System.out.println("Error: NUM_BYTES must be a positive value");
+            printError("Error: NUM_BYTES must be a positive value");
             return; 
         } if (!currentDir.contains(FILE_NAME)) {
-            System.out.println("Error: "+ FILE_NAME +" is not a file");
+            printError("Error: "+ FILE_NAME +" is not a file");
             return;
         } 
         
         DirEntry fileEntry = currentDir.entryWithName(FILE_NAME);
-        byte[] bytes = fileAsByteArray(fileEntry, OFFSET, NUMBYTES);
+        byte[] bytes = volume.fileAsByteArray(fileEntry, OFFSET, NUMBYTES);
         
         if (bytes == null) {
-            System.out.println("Error: attempt to read data outside of file bounds");
+            printError("Error: attempt to read data outside of file bounds");
             return;
         }
 
+        StringBuilder text = new StringBuilder(bytes.length); //One print for the whole read, not one per byte.
         for (byte b : bytes) {
-            if (b < 127) System.out.print((char)b);
-            else System.out.print(printHex(b,2));
+            if (b < 127) text.append((char)b);
+            else text.append(printHex(b,2));
         }
-        System.out.println();
+        out.println(text);
     }
 
 
@@ -0,0 +1,231 @@
+package FAT32;
+import static FAT32.Volume.bytesPerEntry;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+//Optional metadata index kept next to the image (<image>.idx). It holds the BPB fields, every directory's entries and every
+//chain's extents, so a repeat session can start and navigate without reading the boot sector, the FAT or any directory.
+//The index is only used while the image size and modification time match, and both checksums hold. It is mapped as one buffer,
+//so the payload is at most MAX_PAYLOAD_BYTES. An index that would be larger is not written, and the image is read without one.
+//
+//Layout, all LITTLE ENDIAN:
+//  Header  magic, version, image size, image mtime, payload length, payload CRC32, header CRC32
+//  Payload field count, field values (in Volume.fields order), then records until END:
+//          DIR     first cluster, entry count, then per parsable entry its 32 raw bytes, long name length and UTF-16 long name
+//          EXTENTS first cluster, extent count, (start cluster, length) per extent
+public class SidecarIndex {
+    private static final int MAGIC = 0x49323346; //"F32I"
+    private static final int VERSION = 2; //2 added long names.
+    private static final int HEADER_BYTES = 48;
+    private static final long MAX_PAYLOAD_BYTES = Integer.MAX_VALUE - HEADER_BYTES;
+    private static final byte END = 0, DIR = 1, EXTENTS = 2;
+
+    private ByteBuffer payload;
+    private long[] fieldValues;
+    private Map<Long, Integer> dirs = new HashMap<>(); //First cluster -> offset of the DIR record body.
+    private Map<Long, Integer> extents = new HashMap<>(); //First cluster -> offset of the EXTENTS record body.
+
+    public static Path pathFor(String imagePath) {return Paths.get(imagePath + ".idx");}
+
+    //Index for the image, or null if there is none or it does not match the image.
+    public static SidecarIndex load(String imagePath) throws IOException {
+        Path indexPath = pathFor(imagePath);
+        if (!Files.isRegularFile(indexPath)) return null;
+        ByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > HEADER_BYTES + MAX_PAYLOAD_BYTES) return null;
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) return null;
+        CRC32 headerCrc = new CRC32();
+        headerCrc.update(index.slice(0, 40));
+        if ((int)headerCrc.getValue() != index.getInt(40)) return null;
+        Path image = Paths.get(imagePath);
+        if (index.getLong(8) != Files.size(image) || index.getLong(16) != Files.getLastModifiedTime(image).toMillis()) return null;
+        long payloadLength = index.getLong(24);
+        if (HEADER_BYTES + payloadLength != index.capacity()) return null;
+        ByteBuffer payload = index.slice(HEADER_BYTES, (int)payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 payloadCrc = new CRC32();
+        payloadCrc.update(payload.duplicate());
+        if (payloadCrc.getValue() != index.getLong(32)) return null;
+
+        return new SidecarIndex(payload);
+    }
+
+    private SidecarIndex(ByteBuffer payload) {
+        this.payload = payload;
+        int position = 0;
+        fieldValues = new long[payload.getInt(position)];
+        position += 4;
+        for (int i = 0; i < fieldValues.length; i++, position += 8) fieldValues[i] = payload.getLong(position);
+        for (byte tag = payload.get(position++); tag != END; tag = payload.get(position++)) {
+            long firstCluster = payload.getLong(position);
+            int count = payload.getInt(position + 8);
+            if (tag == DIR) {
+                dirs.put(firstCluster, position);
+                position += 12;
+                for (int i = 0; i < count; i++) position += bytesPerEntry + 2 + 2*(payload.getShort(position + bytesPerEntry) & 0xFFFF);
+            } else {
+                extents.put(firstCluster, position);
+                position += 12 + count*16;
+            }
+        }
+    }
+
+    public int getFieldCount() {return fieldValues.length;}
+    public long getFieldValue(int field) {return fieldValues[field];}
+    public int getDirCount() {return dirs.size();}
+    public int getChainCount() {return extents.size();}
+
+    //Entries of the directory, as views into the index, or null if the directory is not indexed.
+    public List<DirEntry> entriesAt(long clusterNumber) {
+        Integer position = dirs.get(clusterNumber);
+        if (position == null) return null;
+        int count = payload.getInt(position + 8);
+        List<DirEntry> entries = new ArrayList<>(count);
+        position += 12;
+        for (int i = 0; i < count; i++) {
+            DirEntry entry = new DirEntry(payload, position);
+            position += bytesPerEntry;
+            int longNameLength = payload.getShort(position) & 0xFFFF;
+            position += 2;
+            if (longNameLength > 0) {
+                char[] longName = new char[longNameLength];
+                for (int c = 0; c < longNameLength; c++, position += 2) longName[c] = payload.getChar(position);
+                entry.setLongName(new String(longName));
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    //Extents of the chain, or null if the chain is not indexed.
+    public ExtentMap extentsOf(long firstCluster) {
+        Integer position = extents.get(firstCluster);
+        if (position == null) return null;
+        int count = payload.getInt(position + 8);
+        long[] starts = new long[count];
+        long[] lengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = payload.getLong(position + 12 + i*16);
+            lengths[i] = payload.getLong(position + 20 + i*16);
+        }
+        return new ExtentMap(firstCluster, starts, lengths);
+    }
+
+    //Walks the whole tree from the root, writes the index next to the image and returns it. Stops, leaving no index, as soon as
+    //the payload passes MAX_PAYLOAD_BYTES, since load would refuse it.
+    public static SidecarIndex build(Volume volume) throws IOException {
+        String imagePath = volume.getImagePath();
+        Path indexPath = pathFor(imagePath);
+        Path tempPath = Paths.get(indexPath + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel, HEADER_BYTES);
+            writer.putInt(volume.getFields().size());
+            for (Field field : volume.getFields()) writer.putLong(field.getVal());
+            writeTree(volume, writer);
+            writer.put(END);
+            writer.flush();
+
+            Path image = Paths.get(imagePath);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(Files.size(image)).putLong(Files.getLastModifiedTime(image).toMillis());
+            header.putLong(writer.written).putLong(writer.crc.getValue());
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header.array(), 0, 40);
+            header.putInt((int)headerCrc.getValue()).putInt(0).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath); //No half written index left behind.
+            throw e;
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return load(imagePath);
+    }
+
+    private static void writeTree(Volume volume, Writer writer) throws IOException {
+        Deque<Long> pending = new ArrayDeque<>();
+        Set<Long> visited = new HashSet<>(); //A corrupt tree may link back to an ancestor.
+        long rootCluster = volume.getRootCluster();
+        pending.add(rootCluster);
+        visited.add(rootCluster);
+        writeExtents(writer, new ExtentMap(volume.getFAT(), rootCluster));
+
+        while (!pending.isEmpty()) {
+            long dirCluster = pending.poll();
+            List<DirEntry> entries = volume.entriesOnDisk(dirCluster);
+            writer.put(DIR);
+            writer.putLong(dirCluster);
+            writer.putInt(entries.size());
+            for (DirEntry entry : entries) {
+                writer.put(entry.getRaw());
+                String longName = entry.getLongName() == null ? "" : entry.getLongName();
+                writer.putShort((short)longName.length());
+                for (int c = 0; c < longName.length(); c++) writer.putShort((short)longName.charAt(c));
+            }
+
+            for (DirEntry entry : entries) {
+                String name = entry.getDIR_NameString();
+                long firstCluster = entry.getNextClusterNumber();
+                if (name.equals(".") || name.equals("..") || firstCluster == 0) continue;
+                if (!visited.add(firstCluster)) continue;
+                writeExtents(writer, new ExtentMap(volume.getFAT(), firstCluster));
+                if (entry.isDirectory()) pending.add(firstCluster);
+            }
+        }
+    }
+
+    private static void writeExtents(Writer writer, ExtentMap map) throws IOException {
+        writer.put(EXTENTS);
+        writer.putLong(map.getFirstCluster());
+        writer.putInt(map.getExtentCount());
+        for (int extent = 0; extent < map.getExtentCount(); extent++) {
+            writer.putLong(map.getStart(extent));
+            writer.putLong(map.getLength(extent));
+        }
+    }
+
+    //Streams the payload through a fixed buffer, keeping its length and CRC.
+    private static class Writer {
+        private FileChannel channel;
+        private long position;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        long written;
+        CRC32 crc = new CRC32();
+
+        Writer(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void put(byte b) throws IOException {ensure(1); buffer.put(b);}
+        void putShort(short s) throws IOException {ensure(2); buffer.putShort(s);}
+        void putInt(int i) throws IOException {ensure(4); buffer.putInt(i);}
+        void putLong(long l) throws IOException {ensure(8); buffer.putLong(l);}
+        void put(byte[] b) throws IOException {ensure(b.length); buffer.put(b);}
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            if (written + buffer.remaining() > MAX_PAYLOAD_BYTES) {
+                throw new IOException("Index would be larger than " + MAX_PAYLOAD_BYTES + " bytes, the most that can be loaded. Not written");
+            }
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                int n = channel.write(buffer, position);
+                position += n;
+                written += n;
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package FAT32;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import jdk.jfr.*;
+
+//What the reader did, for --stats: storage reads and seeks, clusters read, FAT chain steps, directory parse time and a latency
+//histogram per shell command. Also published as an MBean (FAT32:type=Stats) and as JFR events around cluster reads and directory
+//parses. Without --stats a Volume has no Stats, and every hook is one null check.
+public class Stats implements StatsMBean {
+    private static final AtomicInteger instances = new AtomicInteger(); //Volumes of the same image get their own MBean.
+
+    private LongAdder storageReads = new LongAdder();
+    private LongAdder seeks = new LongAdder(); //Reads that do not start where the last one ended.
+    private LongAdder bytesRead = new LongAdder();
+    private AtomicLong lastEnd = new AtomicLong(-1);
+    private LongAdder clustersRead = new LongAdder();
+    private LongAdder FATSteps = new LongAdder();
+    private LongAdder dirClustersParsed = new LongAdder();
+    private LongAdder dirParseNanos = new LongAdder();
+    private ConcurrentMap<String, Histogram> commands = new ConcurrentSkipListMap<>();
+    private ObjectName name;
+
+    //Creates the statistics of one Volume and registers their MBean.
+    public static Stats register(String imagePath) throws JMException {
+        Stats stats = new Stats();
+        stats.name = new ObjectName("FAT32:type=Stats,image=" + ObjectName.quote(imagePath) + ",id=" + instances.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(stats, stats.name);
+        return stats;
+    }
+
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            //Already gone.
+        }
+    }
+
+    protected void storageRead(long offset, long len) {
+        storageReads.increment();
+        bytesRead.add(len);
+        if (lastEnd.getAndSet(offset + len) != offset) seeks.increment();
+    }
+
+    protected void clusterRead() {clustersRead.increment();}
+    protected void FATStep() {FATSteps.increment();}
+
+    protected void dirParsed(long nanos) {
+        dirClustersParsed.increment();
+        dirParseNanos.add(nanos);
+    }
+
+    //Latency of one shell command, and the clusters read while it ran (by every thread).
+    protected void commandDone(String command, long nanos, long clusters) {
+        commands.computeIfAbsent(command, c -> new Histogram()).record(nanos, clusters);
+    }
+
+    @Override public long getStorageReads() {return storageReads.sum();}
+    @Override public long getSeeks() {return seeks.sum();}
+    @Override public long getBytesRead() {return bytesRead.sum();}
+    @Override public long getClustersRead() {return clustersRead.sum();}
+    @Override public long getFATSteps() {return FATSteps.sum();}
+    @Override public long getDirClustersParsed() {return dirClustersParsed.sum();}
+    @Override public long getDirParseMicros() {return dirParseNanos.sum() / 1000;}
+
+    @Override
+    public String[] getCommandLatencies() {
+        List<String> lines = new ArrayList<>();
+        commands.forEach((command, histogram) -> lines.add(command + ": " + histogram));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : List.of(storageReads, seeks, bytesRead, clustersRead, FATSteps, dirClustersParsed, dirParseNanos)) counter.reset();
+        lastEnd.set(-1);
+        commands.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Storage: ").append(getStorageReads()).append(" reads, ").append(getSeeks()).append(" seeks, ").append(getBytesRead()).append(" bytes\n");
+        text.append("Clusters: ").append(getClustersRead()).append(" read\n");
+        text.append("FAT: ").append(getFATSteps()).append(" chain steps\n");
+        text.append("Directories: ").append(getDirClustersParsed()).append(" clusters parsed in ").append(getDirParseMicros()).append(" us");
+        for (String line : getCommandLatencies()) text.append("\n  ").append(line);
+        return text.toString();
+    }
+
+    //Latencies in power of 2 buckets of nanoseconds: bucket b counts [2^b, 2^(b+1)). Quantiles are given as their bucket's upper bound,
+    //or the largest latency seen if that is lower.
+    private static class Histogram {
+        private static final int BUCKETS = 64;
+        private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private LongAdder calls = new LongAdder();
+        private LongAdder totalNanos = new LongAdder();
+        private LongAdder clusters = new LongAdder();
+        private LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos, long clusterCount) {
+            counts.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            calls.increment();
+            totalNanos.add(nanos);
+            clusters.add(clusterCount);
+            maxNanos.accumulate(nanos);
+        }
+
+        private long quantile(double q, long total) {
+            long rank = (long)Math.ceil(q * total), seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) return bucket == BUCKETS - 1 ? maxNanos.get() : Math.min((1L << (bucket + 1)) - 1, maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+
+        private static String micros(long nanos) {
+            return String.format("%.1f us", nanos / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            long total = calls.sum();
+            if (total == 0) return "no calls";
+            return total + " calls, mean " + micros(totalNanos.sum() / total) + ", p50 <= " + micros(quantile(0.5, total))
+                + ", p90 <= " + micros(quantile(0.9, total)) + ", p99 <= " + micros(quantile(0.99, total)) + ", max " + micros(maxNanos.get())
+                + String.format(", %.1f clusters per call", (double)clusters.sum() / total);
+        }
+    }
+
+    //JFR events. Recorded only with --stats, and then only when a recording enables them.
+    @Name("FAT32.ClusterRead")
+    @Label("Cluster Read")
+    @Category("FAT32")
+    @Description("One cluster fetched for the reader, from the cluster cache, the read-ahead or storage")
+    @StackTrace(false)
+    protected static class ClusterReadEvent extends Event {
+        @Label("Cluster")
+        long cluster;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("FAT32.DirectoryParse")
+    @Label("Directory Parse")
+    @Category("FAT32")
+    @Description("One directory cluster parsed into entries")
+    @StackTrace(false)
+    protected static class DirParseEvent extends Event {
+        @Label("Cluster")
+        long cluster;
+        @Label("Entries")
+        int entries;
+    }
+}
@@ -0,0 +1,14 @@
+package FAT32;
+
+//Management interface of Stats. Counters are totals since the Volume was opened or last reset.
+public interface StatsMBean {
+    long getStorageReads();
+    long getSeeks();
+    long getBytesRead();
+    long getClustersRead();
+    long getFATSteps();
+    long getDirClustersParsed();
+    long getDirParseMicros();
+    String[] getCommandLatencies();
+    void reset();
+}
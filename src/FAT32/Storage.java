@@ -0,0 +1,266 @@
+package FAT32;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+
+//Backing store for the image. All offsets are absolute byte offsets into the image, all buffers are LITTLE ENDIAN.
+//Read-only unless opened writable. Writes go straight to the file, so mappings and later reads see them.
+public abstract class Storage implements Closeable {
+    protected static final String RANDOM_ACCESS = "raf";
+    protected static final String MAPPED = "mmap";
+    protected static final String READ_ONLY = "Image is opened read-only. Start the shell with --rw to write to it";
+
+    public static Storage open(String path, String mode) throws IOException {
+        return open(path, mode, false);
+    }
+
+    public static Storage open(String path, String mode, boolean writable) throws IOException {
+        switch (mode) {
+            case RANDOM_ACCESS: return new RandomAccess(path, writable);
+            case MAPPED: return new Mapped(path, writable);
+            default: throw new IllegalArgumentException("Unknown storage mode: " + mode + ". Expected " + RANDOM_ACCESS + " or " + MAPPED);
+        }
+    }
+
+    //View of [offset, offset+len). Backends that can slice do so without copying, so callers must treat the result as read-only.
+    public abstract ByteBuffer buffer(long offset, int len) throws IOException;
+    public abstract long size() throws IOException;
+
+    //True when buffer() slices without copying, so views are free to hold on to.
+    public boolean isZeroCopy() {return false;}
+
+    //Streams [offset, offset+len) into target. Returns the number of bytes written.
+    public long transferTo(long offset, long len, WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (written < len) {
+            int chunk = (int)Math.min(len - written, TRANSFER_CHUNK);
+            ByteBuffer part = buffer(offset + written, chunk);
+            while (part.hasRemaining()) written += target.write(part);
+        }
+        return written;
+    }
+    protected static final int TRANSFER_CHUNK = 1 << 20;
+
+    public boolean isWritable() {return false;}
+
+    //Writes the remaining bytes of src at offset.
+    public void write(long offset, ByteBuffer src) throws IOException {throw new IOException(READ_ONLY);}
+
+    //Copies len bytes from the current position of source to offset, without passing them through the Java heap where the OS can.
+    public void transferFrom(FileChannel source, long offset, long len) throws IOException {throw new IOException(READ_ONLY);}
+
+    protected static void write(FileChannel channel, long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) offset += channel.write(src, offset);
+    }
+
+    protected static void transferFrom(FileChannel channel, FileChannel source, long offset, long len) throws IOException {
+        long written = 0;
+        while (written < len) {
+            long transferred = channel.transferFrom(source, offset + written, len - written);
+            if (transferred <= 0) throw new EOFException("Source ended " + (len - written) + " bytes short of the " + len + " bytes to write at offset=" + offset);
+            written += transferred;
+        }
+    }
+
+    //Copy of [offset, offset+len), safe to keep and modify.
+    public byte[] readBytes(long offset, int len) throws IOException {
+        byte[] b = new byte[len];
+        buffer(offset, len).get(0, b);
+        return b;
+    }
+
+    //Positional reads on one FileChannel. Every call allocates and copies, but there is no shared file pointer, so concurrent readers need no lock.
+    protected static class RandomAccess extends Storage {
+        private FileChannel channel;
+        private boolean writable;
+
+        public RandomAccess(String path) throws IOException {
+            this(path, false);
+        }
+
+        public RandomAccess(String path, boolean writable) throws IOException {
+            this.writable = writable;
+            this.channel = writable ? FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        }
+
+        @Override
+        public ByteBuffer buffer(long offset, int len) throws IOException {
+            return ByteBuffer.wrap(readBytes(offset, len)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public byte[] readBytes(long offset, int len) throws IOException {
+            byte[] b = new byte[len];
+            ByteBuffer target = ByteBuffer.wrap(b);
+            while (target.hasRemaining()) {
+                int read = channel.read(target, offset + target.position());
+                if (read < 0) throw new EOFException("Read of " + len + " bytes at offset=" + offset + " hit the end of the image after " + target.position() + " bytes");
+            }
+            return b;
+        }
+
+        //Zero-copy where the OS supports it.
+        @Override
+        public long transferTo(long offset, long len, WritableByteChannel target) throws IOException {
+            long written = 0;
+            while (written < len) {
+                long transferred = channel.transferTo(offset + written, len - written, target);
+                if (transferred <= 0) throw new EOFException("Transfer of " + len + " bytes at offset=" + offset + " stopped after " + written + " bytes");
+                written += transferred;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isWritable() {return writable;}
+
+        @Override
+        public void write(long offset, ByteBuffer src) throws IOException {
+            if (!writable) super.write(offset, src);
+            write(channel, offset, src);
+        }
+
+        @Override
+        public void transferFrom(FileChannel source, long offset, long len) throws IOException {
+            if (!writable) super.transferFrom(source, offset, len);
+            transferFrom(channel, source, offset, len);
+        }
+
+        @Override
+        public long size() throws IOException {return channel.size();}
+
+        @Override
+        public void close() throws IOException {channel.close();}
+    }
+
+    //Passes every access on to another Storage, counting reads, bytes and seeks for --stats. With mapped storage an access
+    //is a slice of the mapping, and whether it costs a disk read is up to the page cache.
+    protected static class Counting extends Storage {
+        private Storage storage;
+        private Stats stats;
+
+        public Counting(Storage storage, Stats stats) {
+            this.storage = storage;
+            this.stats = stats;
+        }
+
+        @Override
+        public ByteBuffer buffer(long offset, int len) throws IOException {
+            stats.storageRead(offset, len);
+            return storage.buffer(offset, len);
+        }
+
+        @Override
+        public byte[] readBytes(long offset, int len) throws IOException {
+            stats.storageRead(offset, len);
+            return storage.readBytes(offset, len);
+        }
+
+        @Override
+        public long transferTo(long offset, long len, WritableByteChannel target) throws IOException {
+            stats.storageRead(offset, len);
+            return storage.transferTo(offset, len, target);
+        }
+
+        @Override
+        public boolean isWritable() {return storage.isWritable();}
+
+        @Override
+        public void write(long offset, ByteBuffer src) throws IOException {storage.write(offset, src);}
+
+        @Override
+        public void transferFrom(FileChannel source, long offset, long len) throws IOException {storage.transferFrom(source, offset, len);}
+
+        @Override
+        public long size() throws IOException {return storage.size();}
+
+        @Override
+        public boolean isZeroCopy() {return storage.isZeroCopy();}
+
+        @Override
+        public void close() throws IOException {storage.close();}
+    }
+
+    //Maps the whole image. A single MappedByteBuffer is capped at 2GB, so the image is covered by a series of
+    //windows, each WINDOW bytes apart and OVERLAP bytes longer than that, so any read of up to OVERLAP bytes (clusters, FAT pages)
+    //falls entirely inside one window and can be sliced out with no copy.
+    //Writable mappings keep their channel open for writes, which show through the (shared) mapping.
+    protected static class Mapped extends Storage {
+        private static final long WINDOW = 1L << 30;
+        private static final long OVERLAP = 1L << 20;
+        private MappedByteBuffer[] windows;
+        private long size;
+        private FileChannel writer; //null when read-only.
+
+        public Mapped(String path) throws IOException {
+            this(path, false);
+        }
+
+        public Mapped(String path, boolean writable) throws IOException {
+            FileChannel channel = writable ? FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            try {
+                size = channel.size();
+                windows = new MappedByteBuffer[(int)Math.max(1, (size + WINDOW - 1) / WINDOW)];
+                for (int i = 0; i < windows.length; i++) {
+                    long start = i * WINDOW;
+                    long len = Math.min(size - start, WINDOW + OVERLAP);
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, len); //Mapping stays valid after the channel is closed.
+                }
+            } finally {
+                if (writable) writer = channel;
+                else channel.close();
+            }
+        }
+
+        @Override
+        public ByteBuffer buffer(long offset, int len) throws IOException {
+            if (offset < 0 || offset + len > size) throw new EOFException("Read of " + len + " bytes at offset=" + offset + " is outside image of size=" + size);
+            int window = (int)(offset / WINDOW);
+            int local = (int)(offset - window * WINDOW);
+            if (local + len <= windows[window].capacity()) return windows[window].slice(local, len).order(ByteOrder.LITTLE_ENDIAN);
+
+            //Rare: read is longer than OVERLAP and crosses a window boundary. Stitch the pieces together.
+            ByteBuffer ret = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+            while (ret.hasRemaining()) {
+                window = (int)(offset / WINDOW);
+                local = (int)(offset - window * WINDOW);
+                int part = (int)Math.min(ret.remaining(), WINDOW - local);
+                ret.put(windows[window].slice(local, part));
+                offset += part;
+            }
+            return ret.flip();
+        }
+
+        @Override
+        public boolean isWritable() {return writer != null;}
+
+        //Writes may not grow the image, the mapping would not cover the new bytes.
+        @Override
+        public void write(long offset, ByteBuffer src) throws IOException {
+            if (writer == null) super.write(offset, src);
+            if (offset < 0 || offset + src.remaining() > size) throw new EOFException("Write of " + src.remaining() + " bytes at offset=" + offset + " is outside image of size=" + size);
+            write(writer, offset, src);
+        }
+
+        @Override
+        public void transferFrom(FileChannel source, long offset, long len) throws IOException {
+            if (writer == null) super.transferFrom(source, offset, len);
+            if (offset < 0 || offset + len > size) throw new EOFException("Write of " + len + " bytes at offset=" + offset + " is outside image of size=" + size);
+            transferFrom(writer, source, offset, len);
+        }
+
+        @Override
+        public long size() {return size;}
+
+        @Override
+        public boolean isZeroCopy() {return true;}
+
+        @Override
+        public void close() throws IOException {
+            windows = new MappedByteBuffer[0]; //Unmapped by the GC once unreachable.
+            if (writer != null) writer.close();
+        }
+    }
+}
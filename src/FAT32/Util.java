@@ -1,7 +1,9 @@
 package FAT32;
-import static FAT32.Shell.*;
+import static FAT32.Volume.rootDirName;
+import static FAT32.Volume.pathDelimiter;
+import static FAT32.Volume.bytesPerEntry;
 import java.util.*;
-import java.io.*;
+import java.nio.*;
 
 public class Util {
     protected static class Field {
@@ -53,234 +55,199 @@ public class Util {
         }
     }
 
+    //Flyweight view of a 32 byte directory entry inside a shared cluster buffer. Fields are decoded on access, the name on first use.
+    //A scan can repoint one instance at every entry with moveTo(), so only entries the caller keeps (via copy()) cost an allocation.
     protected static class DirEntry {
-        byte[] raw;
-        byte[] DIR_Name8; //8 bytes, binary
-        byte[] DIR_Name3; //3 bytes, binary
-        byte DIR_Attr; //1 byte, binary
-        
-        long DIR_FstClusHI; //2 bytes, numeric
-        long DIR_FstClusLO; //2 bytes, numeric
-        long DIR_FileSize; //4 bytes, numeric
-        
-        boolean free;
-        boolean endOfDir;
-        boolean directory;
-
-        String DIR_NameString;
-        String DIR_Name8String;
-        String DIR_Name3String;
-        long nextClusterNumber;
-
-        List<ATTR> DIR_AttrList;
+        private ByteBuffer buf; //Shared, LITTLE ENDIAN, treated as read-only.
+        private int offset; //Start of this entry within buf.
+        private String DIR_NameString; //Built lazily.
+        private String longName; //VFAT name from the LFN entries in front of this one, or null.
+        private String longKey; //Case-folded longName, computed once when the name is attached.
 
         public DirEntry (byte[] raw) {
+            this(ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN), 0);
             if (raw.length != 32) throw new IllegalStateException("DirEntry constructor called with raw.length="+raw.length);
-            this.raw = raw;
-            DIR_Name8 = parseBytesToBytes(raw, 0, 8);
-            DIR_Name3 = parseBytesToBytes(raw, 8, 3);
-            DIR_Attr = parseBytesToBytes(raw, 11, 1)[0];
-            
-            DIR_FstClusHI = parseBytesToNumeric(raw, 20, 2);
-            DIR_FstClusLO = parseBytesToNumeric(raw, 26, 2);
-            DIR_FileSize = parseBytesToNumeric(raw, 28, 4);
-            
-            parseAttr();
-            parseName();
-            parseNextClusterNumber();
-
-            if (raw[0] == 0xE5) free = true;
-            if (raw[0] == 0x00) endOfDir = true;
-            if (DIR_AttrList.contains(ATTR.ATTR_DIRECTORY)) directory = true;
         }
-        
-        public String getDIR_NameString() {return DIR_NameString;}
-        public long getNextClusterNumber() {return nextClusterNumber;}
-        public long getFileSize() {return DIR_FileSize;}
-        public byte[] getRaw() {return this.raw;}
 
-        private void parseAttr() {
-            this.DIR_AttrList = new ArrayList<>();
-            for (ATTR attr : ATTR.values()) {
-                if ((this.DIR_Attr & attr.bitmask) != 0) this.DIR_AttrList.add(attr);
-            }
-        } 
+        public DirEntry (ByteBuffer buf, int offset) {
+            moveTo(buf, offset);
+        }
 
-        private void parseName() {
-            DIR_NameString = DIR_Name8String = DIR_Name3String = "";
-            for (byte c : DIR_Name8) {
-                if (!Character.isWhitespace(c)) DIR_Name8String += (char)c;
-            }
-            for (byte c : DIR_Name3) {
-                if (!Character.isWhitespace(c)) DIR_Name3String += (char)c;
+        public DirEntry moveTo(ByteBuffer buf, int offset) {
+            this.buf = buf;
+            this.offset = offset;
+            this.DIR_NameString = null;
+            this.longName = null;
+            this.longKey = null;
+            return this;
+        }
+
+        //Detached view of the same entry, for keeping past the current step of a scan.
+        public DirEntry copy() {
+            DirEntry copy = new DirEntry(buf, offset);
+            copy.DIR_NameString = DIR_NameString;
+            copy.longName = longName;
+            copy.longKey = longKey;
+            return copy;
+        }
+
+        //As copy, but over its own 32 bytes, so keeping it does not keep the cluster it was read from.
+        public DirEntry detach() {
+            DirEntry detached = new DirEntry(getRaw());
+            detached.DIR_NameString = DIR_NameString;
+            detached.longName = longName;
+            detached.longKey = longKey;
+            return detached;
+        }
+
+        public byte getDIR_Attr() {return buf.get(offset + 11);}
+        public long getDIR_FstClusHI() {return buf.getShort(offset + 20) & 0xFFFFL;}
+        public long getDIR_FstClusLO() {return buf.getShort(offset + 26) & 0xFFFFL;}
+        public long getFileSize() {return buf.getInt(offset + 28) & 0xFFFFFFFFL;}
+        public long getNextClusterNumber() {return (getDIR_FstClusHI() << 16) + getDIR_FstClusLO();}
+        public byte[] getRaw() {
+            byte[] raw = new byte[bytesPerEntry];
+            buf.get(offset, raw);
+            return raw;
+        }
+
+        public String getDIR_NameString() {
+            if (DIR_NameString == null) DIR_NameString = parseName();
+            return DIR_NameString;
+        }
+
+        public DirEntry setLongName(String longName) {
+            this.longName = longName;
+            this.longKey = longName == null ? null : LongName.keyOf(longName);
+            return this;
+        }
+
+        public String getLongName() {return longName;}
+        public String getLongKey() {return longKey;}
+        //Long name when there is one, as listings show it.
+        public String getDisplayName() {return longName != null ? longName : getDIR_NameString();}
+        //True for the 8.3 name or the case-folded long name.
+        public boolean hasName(String key) {return key.equals(longKey) || key.equals(getDIR_NameString());}
+
+        private String parseName() {
+            char[] name = new char[12]; //8 + "." + 3
+            int len = appendNamePart(name, 0, 0, 8);
+            if (!isDirectory() && buf.get(offset + 8) != ' ') { //No dot when the extension is blank, "README" and not "README."
+                name[len++] = '.';
+                len = appendNamePart(name, len, 8, 3);
             }
-            if (this.DIR_AttrList.contains(ATTR.ATTR_DIRECTORY)) DIR_NameString = DIR_Name8String;
-            else DIR_NameString = DIR_Name8String + "." + DIR_Name3String;
+            return new String(name, 0, len);
         }
 
-        private void parseNextClusterNumber() {
-            nextClusterNumber = (DIR_FstClusHI << 16) + DIR_FstClusLO;
+        private int appendNamePart(char[] name, int len, int from, int count) {
+            for (int i = from; i < from + count; i++) {
+                byte c = buf.get(offset + i);
+                if (!Character.isWhitespace(c)) name[len++] = (char)c;
+            }
+            return len;
         }
 
-        public boolean isFree() {return free;}
-        public boolean isEndOfDir() {return endOfDir;}
-        public boolean isDirectory() {return directory;}
+        public boolean hasAttr(ATTR attr) {return (getDIR_Attr() & attr.bitmask) == attr.bitmask;} //All bits, for ATTR_LONG_NAME
+        public boolean isFree() {return (buf.get(offset) & 0xFF) == 0xE5;}
+        public boolean isEndOfDir() {return buf.get(offset) == 0x00;}
+        public boolean isDirectory() {return hasAttr(ATTR.ATTR_DIRECTORY);}
+        public boolean isLongNameEntry() {return LongName.isLongNameEntry(buf, offset);}
+
+        //Determines if an entry is parsable
+        public boolean isParsable() {
+            if (isFree()) return false; // directory entry is free
+            if (isEndOfDir()) return false; //directory entry is free (same as for 0xE5), and there are no allocated directory entries after this one
+            if (isLongNameEntry()) return false; //long-name entry, folded into the short entry that follows it
+            if (hasAttr(ATTR.ATTR_VOLUME_ID)) return false; //volume label, not a file
+            return true;
+        }
 
         @Override
         public String toString() {
-            String attributes = "";
-            for (ATTR attr : DIR_AttrList) attributes += attr + " ";
+            StringBuilder attributes = new StringBuilder();
+            for (ATTR attr : ATTR.values()) {
+                if (hasAttr(attr)) attributes.append(attr).append(' ');
+            }
             return (""
-            +"Size is " + DIR_FileSize +"\n"
+            +"Size is " + getFileSize() +"\n"
             +"Attributes " + attributes +"\n"
-            +"Next cluster number is " + printHex(nextClusterNumber));
-        }
-
-        //Determines if an entry is parsable
-        public static boolean parsableEntryRaw (byte[] raw) {
-            byte[] DIR_Name = parseBytesToBytes(raw,0,11);
-            byte DIR_Attr = parseBytesToBytes(raw, 11, 1)[0];
-            if (DIR_Name[0] == 0xE5) return false; // directory entry is free
-            if (DIR_Name[0] == 0x00) return false; //directory entry is free (same as for 0xE5), and there are no allocated directory entries after this one
-            if ((DIR_Attr & ATTR.ATTR_LONG_NAME.bitmask) != 0) return false; //long-name entry
-            return true;
+            +"Next cluster number is " + printHex(getNextClusterNumber()));
         }
     }
 
     protected static class Dir {
+        private long clusterNumber;
         private List<DirEntry> entries;
-        private Set<String> names;
+        private int[] nameIndex; //Open addressing hash of 8.3 name and long key -> (entry index + 1), 0 marks an empty slot.
+        private volatile Set<String> names; //Sorted listing, built on first request. Published whole, so Sessions may share a Dir.
         private List<String> pathList;
         private boolean root;
 
-        public Dir (List<DirEntry> entries, List<String> pathList) {
+        public Dir (long clusterNumber, List<DirEntry> entries, List<String> pathList) {
+            this.clusterNumber = clusterNumber;
             this.entries = entries;
             this.pathList = pathList;
-            this.names = new TreeSet<>();
-            
-            for (DirEntry entry : entries) names.add(entry.getDIR_NameString());
             if (pathList.equals(List.of(rootDirName))) root = true;
-            if (root) names.add("."); //unique condition of root  
-            if (root) names.add(".."); //unique condition of root 
-        }
-    
-        public List<DirEntry> getEntries() {return entries;}
-        public Set<String> getNames() {return names;}
-        public String getNamesString() {return getNamesString(" ");}
-        public String getNamesString(String delim) {return String.join(delim, names);}
-        public List<String> getPathList() {return pathList;}
-        public String getPathString() {
-            List<String> pathTail = this.pathList.subList(1,pathList.size());
-            return rootDirName + String.join(pathDelimiter, pathTail);
+            buildNameIndex();
         }
-        public boolean isRoot() {return root;}
 
-        public boolean contains(DirEntry entry) {return entries.contains(entry);}
-        public boolean contains(String name) {return names.contains(name);}
-        
-        public DirEntry entryWithName(String name) {
-            if (!contains(name)) System.out.println("WARNING. entryWithName(String name) called for a name not in Dir. Usage: preface with call to contains(String name)");
-            
-            for (DirEntry entry : entries) {
-                if (entry.getDIR_NameString().equals(name)) return entry;
+        private void buildNameIndex() {
+            int keys = entries.size();
+            for (DirEntry entry : entries) if (entry.getLongKey() != null) keys++;
+            nameIndex = new int[Integer.highestOneBit(Math.max(keys, 1)) * 4]; //Load factor at most 1/2.
+            for (int entryIndex = 0; entryIndex < entries.size(); entryIndex++) {
+                DirEntry entry = entries.get(entryIndex);
+                index(entry.getDIR_NameString(), entryIndex);
+                if (entry.getLongKey() != null) index(entry.getLongKey(), entryIndex);
             }
-            return null;
         }
 
-        protected static byte[] fileAsByteArray (DirEntry fileEntry, int offset, int numBytes) throws IOException {
-            byte[] file = fileAsByteArray(fileEntry);
-            if (offset + numBytes > file.length) return null;
-            byte[] ret = new byte[numBytes]; 
-            System.arraycopy(file, offset, ret, 0, numBytes);
-            return ret;
+        private void index(String key, int entryIndex) {
+            int slot = slotOf(key);
+            if (nameIndex[slot] == 0) nameIndex[slot] = entryIndex + 1; //On duplicate names the first entry wins, as with a linear scan.
         }
 
-        protected static byte[] fileAsByteArray (DirEntry fileEntry) throws IOException {
-            byte[] file = entryToFile(fileEntry);
-            return file;
+        //Slot holding an entry known by key, or the empty slot where it would go. Both keys of an entry lead to it.
+        private int slotOf(String key) {
+            int mask = nameIndex.length - 1;
+            int h = key.hashCode();
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (nameIndex[slot] != 0 && !entries.get(nameIndex[slot] - 1).hasName(key)) slot = (slot + 1) & mask;
+            return slot;
         }
-
-        protected static Dir entryToDir(DirEntry entry, List<String> pathList) throws IOException {
-            if (!entry.isDirectory()) return null;
-
-            List<DirEntry> entries = new ArrayList<>();
-            long clusterNumber = entry.getNextClusterNumber();
-            do {
-                entries.addAll(parseClusterAsDir(clusterNumber));
-                clusterNumber = FAT[(int)clusterNumber];
-            } while (continuesInFAT(clusterNumber));
-            return new Dir(entries, pathList);
-        }
-
-        protected static byte[] entryToFile(DirEntry entry) throws IOException {
-            if (entry.isDirectory()) return null;
-
-            int fileSize = (int)entry.getFileSize();
-            int currentSize = 0;
-            byte[] file = new byte[fileSize];
-            long clusterNumber = entry.getNextClusterNumber();
-            while (currentSize < fileSize && continuesInFAT(clusterNumber)) {
-                byte[] filePart = parseClusterAsFile(clusterNumber);
-                int readableByes = Math.min(filePart.length, fileSize - currentSize);
-                System.arraycopy(filePart, 0, file, currentSize, readableByes);
-                clusterNumber = FAT[(int)clusterNumber];
-                currentSize += bytesPerCluster;
-            }
-            return file;
-        }
-
-        protected static List<DirEntry> parseClusterAsDir(long clusterNumber) throws IOException {
-            List<DirEntry> entries = new ArrayList<>(entriesPerCluster);
-            byte[] cluster = readClusterBytes(clusterNumber);
-            for (int entryNumber = 0; entryNumber < entriesPerCluster; entryNumber++) {
-                byte[] entryRaw = parseBytesToBytes(cluster, entryNumber*bytesPerEntry, bytesPerEntry);
-                if (DirEntry.parsableEntryRaw(entryRaw)) {
-                    entries.add(new DirEntry(entryRaw));
-                }
+    
+        public long getClusterNumber() {return clusterNumber;}
+        public List<DirEntry> getEntries() {return entries;}
+        public Set<String> getNames() {
+            if (names == null) {
+                Set<String> sorted = new TreeSet<>();
+                for (DirEntry entry : entries) sorted.add(entry.getDisplayName());
+                if (root) sorted.add("."); //unique condition of root  
+                if (root) sorted.add(".."); //unique condition of root 
+                names = sorted;
             }
-            return entries;
+            return names;
         }
-
-        protected static byte[] parseClusterAsFile (long clusterNumber) throws IOException {
-            byte[] cluster = readClusterBytes(clusterNumber);
-            return cluster;
+        public String getNamesString() {return getNamesString(" ");}
+        public String getNamesString(String delim) {return String.join(delim, getNames());}
+        public List<String> getPathList() {return pathList;}
+        public String getPathString() {
+            List<String> pathTail = this.pathList.subList(1,pathList.size());
+            return rootDirName + String.join(pathDelimiter, pathTail);
         }
+        public boolean isRoot() {return root;}
 
-        protected static byte[] readClusterBytes(long clusterNumber) throws IOException {
-            seekToClusterNumber(clusterNumber);
-            return readBytes(bytesPerCluster);
+        public boolean contains(DirEntry entry) {return entries.contains(entry);}
+        public boolean contains(String name) {
+            if (root && (name.equals(".") || name.equals(".."))) return true; //unique condition of root
+            return nameIndex[slotOf(name)] != 0;
         }
         
-        protected static void seekToClusterNumber(long clusterNumber) throws IOException {
-            if (clusterNumber == 0) file.seek(cluster02Offset); //per MS spec pg. 25, references to root entry are uniquely 0
-            else file.seek(cluster00Offset + bytesPerCluster*clusterNumber);
-        }
+        public DirEntry entryWithName(String name) {
+            if (!contains(name)) throw new IllegalArgumentException("entryWithName(String name) called for a name not in Dir: " + name + ". Usage: preface with call to contains(String name)");
 
-        protected static Dir dirAt(String pathString) throws IOException {
-            if (pathString == null || pathString == "") throw new IllegalStateException("changeDir(String pathString) called for empty pathString="+pathString);
-            List<String> pathList = pathStringToList(pathString);
-            return dirAt(pathList);
-        }
-
-        private static Dir dirAt(List<String> pathList) throws IOException {
-            Dir dir = currentDir;
-            if (pathList.get(0).equals(rootDirName)) {
-                dir = rootDir;
-                pathList.remove(0);
-            }
-            List<String> currentPathList = new ArrayList<>(dir.getPathList()); //Make a copy of the current dir's pathList, will be modified as the pathList is traversed
-
-            for (String s : pathList) {
-                if (s.equals(".")) continue; //No-opp for "."
-                if (s.equals("..")) {
-                    if (dir.isRoot()) { continue; //No-opp for ".." at rootDir 
-                    } else {currentPathList.remove(currentPathList.size()-1);} //Moving up, remove last field.
-                } else {currentPathList.add(s);} //Moving down, add one field.
-                if (!dir.contains(s)) return null; 
-                DirEntry nextDir = dir.entryWithName(s);
-                dir = entryToDir(nextDir, currentPathList);
-            }
-            return dir;
+            int entryIndex = nameIndex[slotOf(name)] - 1;
+            return entryIndex < 0 ? null : entries.get(entryIndex);
         }
     }    
 
@@ -306,7 +273,7 @@ public class Util {
         if (len > 7) System.out.println("WARNING. Attempted parseBytesToNumeric(byte[] b) for bytes=" + len + ". Returned signed long may overflow.");
         long ret = 0;
         for (int place = 0; place < len; place++)
-        ret += (b[place + offset] & 0xFF)*Math.pow(256,place); //Properly read byte: unsigned_value * 256^place_in_endian_order. Use `& 0xFF` to force Java to treat as raw bits and then cast to larger data type
+        ret |= (b[place + offset] & 0xFFL) << (8*place); //Properly read byte: unsigned_value << 8*place_in_endian_order. Use `& 0xFF` to force Java to treat as raw bits and then cast to larger data type
         return ret;
     }
     
@@ -320,16 +287,17 @@ public class Util {
         return ret;
     }
 
-    //Conveience method for parseBytesToNumeric(readBytes(bytes))
-    protected static long readNumeric(int bytes) throws IOException {
-        return parseBytesToNumeric(readBytes(bytes));
-    }
-    
-    //Read array of size bytes.
-    protected static byte[] readBytes (int bytes) throws IOException {
-        byte[] b = new byte[bytes];
-        file.read(b);
-        return b;
+    //Parses a byte count with an optional K, M or G suffix.
+    protected static long parseSize(String size) {
+        String digits = size.toUpperCase(Locale.ROOT);
+        int shift = 0;
+        switch (digits.charAt(digits.length() - 1)) {
+            case 'K': shift = 10; break;
+            case 'M': shift = 20; break;
+            case 'G': shift = 30; break;
+        }
+        if (shift != 0) digits = digits.substring(0, digits.length() - 1);
+        return Long.parseLong(digits) << shift;
     }
 
     protected static String printHex (long val) {
@@ -0,0 +1,448 @@
+package FAT32;
+import static FAT32.Util.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.WritableByteChannel;
+
+//One open FAT32 image: the storage handle, the BPB fields, the FAT and every cache built on top of them.
+//A Volume holds no per-user state, so any number of Sessions (each with its own current directory) may share one from any thread.
+public class Volume implements Closeable {
+    protected static final String rootDirName = "/";
+    protected static final String pathDelimiter = "/";
+    protected static final int bytesPerEntry = 32;
+
+    // Microsoft Name  Field                       Offset  Size    Value
+    // BPB_BytesPerSec Bytes Per Sector            0x0B    16 Bits Always 512 Bytes
+    // BPB_SecPerClus  Sectors Per Cluster         0x0D    8 Bits  1,2,4,8,16,32,64,128
+    // BPB_RsvdSecCnt  Number of Reserved Sectors  0x0E    16 Bits Usually 0x20
+    // BPB_NumFATS     Number of FATs              0x10    8 Bits  Always 2
+    // BPB_FATSz32     Sectors Per FAT             0x24    32 Bits Depends on disk size
+    // BPB_RootClus     Root Dir First Cluster      0x2C    32 Bits Usually 0x2
+    // BPB_TotSec32    Total Sectors               0x20    32 Bits Depends on disk size
+    // BPB_FSInfo      FSInfo Sector Number        0x30    16 Bits Usually 0x1
+    protected final Field BPB_BytesPerSec = new Field("BPB_BytesPerSec", 0x0B, 2);
+    protected final Field BPB_SecPerClus = new Field("BPB_SecPerClus", 0x0D, 1);
+    protected final Field BPB_RsvdSecCnt = new Field("BPB_RsvdSecCnt", 0x0E, 2);
+    protected final Field BPB_NumFATS = new Field("BPB_NumFATS", 0x10, 1);
+    protected final Field BPB_FATSz32 = new Field("BPB_FATSz32", 0x24, 4);
+    protected final Field BPB_RootClus = new Field("BPB_RootClus", 0x2C, 4);
+    protected final Field BPB_TotSec32 = new Field("BPB_TotSec32", 0x20, 4);
+    protected final Field BPB_FSInfo = new Field("BPB_FSInfo", 0x30, 2);
+    protected final List<Field> infoFields = List.of(BPB_BytesPerSec,BPB_SecPerClus,BPB_RsvdSecCnt,BPB_NumFATS,BPB_FATSz32); //Printed.
+    protected final List<Field> privateFields = List.of(BPB_RootClus,BPB_TotSec32,BPB_FSInfo); //Not printed.
+    protected final List<Field> fields = new ArrayList<>();
+
+    private String imagePath;
+    private Map<String, String> options;
+    private Storage storage;
+    private FileAllocationTable FAT;
+    private ExtentMap.Cache extentCache;
+    private DentryCache dentryCache;
+    private ClusterCache clusterCache; //null when disabled.
+    private ReadAhead readAhead; //null when disabled.
+    private volatile SidecarIndex sidecarIndex; //null unless --index is given and the index matches the image.
+    private volatile SearchIndex searchIndex; //Built by the first find.
+    private Stats stats; //null unless --stats is given.
+    private FreeSpace freeSpace; //Scanned by the first put, then kept up to date by put.
+    private Dir rootDir;
+
+    //Shorthand members to make code more readable.
+    protected int bytesPerCluster;
+    protected long bytesPerFAT;
+    protected int entriesPerCluster;
+    protected int FATOffset;
+    protected long cluster02Offset;
+    protected long cluster00Offset;
+    protected long clusterCount; //Data clusters, numbered 2 to clusterCount+1.
+
+    //Opens the image with the given startup options (the --name=value arguments of the shell, without the dashes).
+    public static Volume open(String imagePath, Map<String, String> options) throws IOException {
+        Volume volume = new Volume(imagePath, options);
+        try {
+            volume.init();
+        } catch (IOException | RuntimeException e) {
+            volume.close();
+            throw e;
+        }
+        return volume;
+    }
+
+    private Volume(String imagePath, Map<String, String> options) {
+        this.imagePath = imagePath;
+        this.options = Map.copyOf(options);
+    }
+
+    private void init() throws IOException {
+        initStats();
+        storage = Storage.open(imagePath, options.getOrDefault("storage", Storage.RANDOM_ACCESS), options.containsKey("rw"));
+        if (stats != null) storage = new Storage.Counting(storage, stats);
+        if (options.containsKey("index")) sidecarIndex = SidecarIndex.load(imagePath);
+        initFields();
+        initShorthands();
+        initFAT();
+        extentCache = new ExtentMap.Cache(this, Integer.parseInt(options.getOrDefault("extent-cache", "1024")));
+        dentryCache = new DentryCache(Integer.parseInt(options.getOrDefault("dentry-cache", "4096")));
+        initClusterCache();
+        initReadAhead();
+        initRootDir();
+        if (options.containsKey("index") && sidecarIndex == null) buildSidecarIndex();
+    }
+
+        //The index is only a cache. When it cannot be written (next to a read-only image, say) the image is read without it.
+        private void buildSidecarIndex() {
+            try {
+                sidecarIndex = SidecarIndex.build(this);
+            } catch (IOException e) {
+                System.err.println("Warning: could not build the index " + SidecarIndex.pathFor(imagePath) + ", reading the image without it. " + e);
+            }
+        }
+
+        private void initStats() throws IOException {
+            if (!options.containsKey("stats")) return;
+            try {
+                stats = Stats.register(imagePath);
+            } catch (javax.management.JMException e) {
+                throw new IOException("Could not register the statistics MBean", e);
+            }
+        }
+
+        private void initFields() throws IOException {
+            fields.addAll(infoFields);
+            fields.addAll(privateFields);
+            if (sidecarIndex != null && sidecarIndex.getFieldCount() != fields.size()) sidecarIndex = null;
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (sidecarIndex != null) field.setVal(sidecarIndex.getFieldValue(i));
+                else field.setVal(readNumeric(field.getOffset(), field.getBytes()));
+            }
+        }
+
+        private void initShorthands() {
+            bytesPerCluster = (int)(BPB_SecPerClus.getVal() * BPB_BytesPerSec.getVal());
+            bytesPerFAT = BPB_FATSz32.getVal() * BPB_BytesPerSec.getVal();
+            entriesPerCluster = bytesPerCluster/bytesPerEntry;
+            FATOffset = (int)(BPB_RsvdSecCnt.getVal() * BPB_BytesPerSec.getVal());
+            cluster02Offset = FATOffset + BPB_NumFATS.getVal()*bytesPerFAT;
+            cluster00Offset = cluster02Offset - 2*bytesPerCluster;
+            long dataSectors = BPB_TotSec32.getVal() - BPB_RsvdSecCnt.getVal() - BPB_NumFATS.getVal()*BPB_FATSz32.getVal();
+            clusterCount = Math.max(0, dataSectors / BPB_SecPerClus.getVal());
+        }
+
+        private void initFAT() {
+            FAT = new FileAllocationTable(storage, FATOffset, bytesPerFAT, Integer.parseInt(options.getOrDefault("fat-cache", "256")), stats);
+        }
+
+        private void initClusterCache() {
+            String defaultBudget = storage.isZeroCopy() ? "0" : "16M"; //A mapped image is its own cache.
+            long budget = parseSize(options.getOrDefault("cluster-cache", defaultBudget));
+            if (budget == 0) return;
+            clusterCache = ClusterCache.create(options.getOrDefault("eviction", ClusterCache.LRU), budget, bytesPerCluster,
+                options.containsKey("off-heap"), this::readClusterFromStorage);
+        }
+
+        private void initReadAhead() {
+            String defaultWindow = storage.isZeroCopy() ? "0" : "64"; //The OS already reads ahead on a mapping.
+            int maxWindow = Integer.parseInt(options.getOrDefault("read-ahead", defaultWindow));
+            if (maxWindow == 0) return;
+            readAhead = new ReadAhead(maxWindow, bytesPerCluster, this::readClustersFromStorage, clusterCache);
+        }
+
+        private void initRootDir() throws IOException {
+            List<String> pathList = new ArrayList<>();
+            pathList.add(rootDirName);
+            rootDir = clusterToDir(BPB_RootClus.getVal(), pathList);
+        }
+
+    public String getImagePath() {return imagePath;}
+    public Storage getStorage() {return storage;}
+    public FileAllocationTable getFAT() {return FAT;}
+    public ExtentMap.Cache getExtentCache() {return extentCache;}
+    public DentryCache getDentryCache() {return dentryCache;}
+    public ClusterCache getClusterCache() {return clusterCache;}
+    public ReadAhead getReadAhead() {return readAhead;}
+    public SidecarIndex getSidecarIndex() {return sidecarIndex;}
+    public Stats getStats() {return stats;}
+    public Dir getRootDir() {return rootDir;}
+    public long getRootCluster() {return BPB_RootClus.getVal();}
+    public int getBytesPerCluster() {return bytesPerCluster;}
+    //One past the highest cluster number that is both in the data region and in the FAT.
+    public long getClusterLimit() {return Math.min(clusterCount + 2, FAT.size());}
+    public List<Field> getFields() {return fields;}
+    public List<Field> getInfoFields() {return infoFields;}
+
+    public SearchIndex getSearchIndex() throws IOException {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            synchronized (this) {
+                if (searchIndex == null) searchIndex = SearchIndex.build(this);
+                index = searchIndex;
+            }
+        }
+        return index;
+    }
+
+    protected synchronized FreeSpace getFreeSpace() throws IOException {
+        if (freeSpace == null) freeSpace = FreeSpace.scan(this);
+        return freeSpace;
+    }
+
+    //Drops everything cached from the image after a write, and reads the root directory again. The sidecar index on disk is stale
+    //too (and is ignored when next loaded, as the image changed), so it is dropped until rebuilt. When the write failed part way
+    //the free space is dropped as well, to be scanned again. Sessions keep their current directory until they refresh() it.
+    protected synchronized void invalidate(boolean failed) throws IOException {
+        if (failed) freeSpace = null;
+        FAT.invalidate();
+        if (readAhead != null) readAhead.discardAll(); //First, so no prefetch from before the write lands in the cleared cache.
+        if (clusterCache != null) clusterCache.clear();
+        extentCache.clear();
+        dentryCache.clear();
+        sidecarIndex = null;
+        searchIndex = null;
+        initRootDir();
+    }
+
+    //Rewrites the sidecar index from the image itself, not from the old index.
+    public synchronized SidecarIndex rebuildIndex() throws IOException {
+        sidecarIndex = null;
+        extentCache.clear();
+        sidecarIndex = SidecarIndex.build(this);
+        return sidecarIndex;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (readAhead != null) readAhead.close();
+        if (storage != null) storage.close();
+        if (stats != null) stats.unregister();
+    }
+
+    //Reads only the clusters overlapping [offset, offset+numBytes), so cost depends on the request and not on the file size.
+    protected byte[] fileAsByteArray (DirEntry fileEntry, long offset, int numBytes) throws IOException {
+        if (fileEntry.isDirectory()) return null;
+        if (offset + numBytes > fileEntry.getFileSize()) return null;
+        byte[] ret = new byte[numBytes];
+
+        ExtentMap extents = extentCache.get(fileEntry.getNextClusterNumber());
+        long clusterIndex = offset/bytesPerCluster; //Index within the chain of the cluster holding offset.
+        int clusterOffset = (int)(offset % bytesPerCluster);
+        int copied = 0;
+        while (copied < numBytes) {
+            long clusterNumber = extents.clusterAt(clusterIndex);
+            if (clusterNumber < 0) return null; //Chain is shorter than DIR_FileSize claims.
+            if (readAhead != null) readAhead.access(extents, clusterIndex);
+            clusterIndex++;
+            ByteBuffer cluster = parseClusterAsFile(clusterNumber);
+            int readableBytes = Math.min(bytesPerCluster - clusterOffset, numBytes - copied);
+            cluster.get(clusterOffset, ret, copied, readableBytes);
+            copied += readableBytes;
+            clusterOffset = 0;
+        }
+        return ret;
+    }
+
+    protected byte[] fileAsByteArray (DirEntry fileEntry) throws IOException {
+        byte[] file = entryToFile(fileEntry);
+        return file;
+    }
+
+    protected Dir entryToDir(DirEntry entry, List<String> pathList) throws IOException {
+        if (!entry.isDirectory()) return null;
+        return clusterToDir(entry.getNextClusterNumber(), pathList);
+    }
+
+    protected Dir clusterToDir(long clusterNumber, List<String> pathList) throws IOException {
+        if (clusterNumber == 0) clusterNumber = BPB_RootClus.getVal(); //per MS spec pg. 25, references to root entry are uniquely 0
+        return new Dir(clusterNumber, entriesAt(clusterNumber), pathList);
+    }
+
+    //Entries of the directory starting at clusterNumber, across its whole chain. Served from the sidecar index when it has them.
+    protected List<DirEntry> entriesAt(long clusterNumber) throws IOException {
+        return entriesAt(clusterNumber, true);
+    }
+
+    //cacheChain false leaves the extent cache as it was, so a walk over the whole tree does not push out the maps of the files being read.
+    protected List<DirEntry> entriesAt(long clusterNumber, boolean cacheChain) throws IOException {
+        if (clusterNumber == 0) clusterNumber = BPB_RootClus.getVal(); //per MS spec pg. 25, references to root entry are uniquely 0
+        SidecarIndex index = sidecarIndex;
+        if (index != null) {
+            List<DirEntry> indexed = index.entriesAt(clusterNumber);
+            if (indexed != null) return indexed;
+        }
+        return entriesOnDisk(clusterNumber, cacheChain);
+    }
+
+    protected List<DirEntry> entriesOnDisk(long clusterNumber) throws IOException {
+        return entriesOnDisk(clusterNumber, true);
+    }
+
+    protected List<DirEntry> entriesOnDisk(long clusterNumber, boolean cacheChain) throws IOException {
+        List<DirEntry> entries = new ArrayList<>();
+        LongName longName = new LongName(); //Carried over cluster boundaries.
+        ExtentMap extents = cacheChain ? extentCache.get(clusterNumber) : extentCache.peek(clusterNumber);
+        for (int extent = 0; extent < extents.getExtentCount(); extent++) {
+            long start = extents.getStart(extent);
+            for (long cluster = start; cluster < start + extents.getLength(extent); cluster++) {
+                if (!scanClusterAsDir(cluster, longName, entry -> entries.add(entry.copy()))) return entries;
+            }
+        }
+        return entries;
+    }
+
+    protected byte[] entryToFile(DirEntry entry) throws IOException {
+        if (entry.isDirectory()) return null;
+
+        if (entry.getFileSize() > Integer.MAX_VALUE) throw new IOException("File of " + entry.getFileSize() + " bytes does not fit in a byte array. Stream it with exportFile instead");
+        int fileSize = (int)entry.getFileSize();
+        int currentSize = 0;
+        byte[] file = new byte[fileSize];
+        if (fileSize == 0) return file;
+        ExtentMap extents = extentCache.get(entry.getNextClusterNumber());
+        for (long clusterIndex = 0; currentSize < fileSize && clusterIndex < extents.getClusterCount(); clusterIndex++) {
+            if (readAhead != null) readAhead.access(extents, clusterIndex);
+            ByteBuffer filePart = parseClusterAsFile(extents.clusterAt(clusterIndex));
+            int readableByes = Math.min(filePart.capacity(), fileSize - currentSize);
+            filePart.get(0, file, currentSize, readableByes); //Copy straight from the storage view into the file.
+            currentSize += bytesPerCluster;
+        }
+        return file;
+    }
+
+    //Streams the file into target one extent at a time. Each extent is contiguous in the image, so it is a single transfer
+    //that bypasses the cluster cache, and memory use does not depend on the file size.
+    protected long exportFile(DirEntry entry, WritableByteChannel target) throws IOException {
+        if (entry.isDirectory()) return -1;
+        long remaining = entry.getFileSize();
+        if (remaining == 0) return 0;
+        ExtentMap extents = extentCache.get(entry.getNextClusterNumber());
+        for (int extent = 0; extent < extents.getExtentCount() && remaining > 0; extent++) {
+            long bytes = Math.min(remaining, extents.getLength(extent) * bytesPerCluster);
+            storage.transferTo(clusterOffset(extents.getStart(extent)), bytes, target);
+            remaining -= bytes;
+        }
+        if (remaining > 0) throw new IOException("Cluster chain ends " + remaining + " bytes short of DIR_FileSize=" + entry.getFileSize());
+        return entry.getFileSize();
+    }
+
+    protected List<DirEntry> parseClusterAsDir(long clusterNumber) throws IOException {
+        List<DirEntry> entries = new ArrayList<>(entriesPerCluster);
+        scanClusterAsDir(clusterNumber, new LongName(), entry -> entries.add(entry.copy()));
+        return entries;
+    }
+
+    //Visits every parsable entry of the cluster through a single reused DirEntry, with its long name attached when it has one.
+    //Visitors that keep an entry must copy() it. Returns false at the end-of-directory marker, when later clusters hold nothing.
+    protected boolean scanClusterAsDir(long clusterNumber, LongName longName, Consumer<DirEntry> visitor) throws IOException {
+        if (stats == null) return scanCluster(clusterNumber, longName, visitor);
+        Stats.DirParseEvent event = new Stats.DirParseEvent();
+        int[] entries = new int[1];
+        long start = System.nanoTime();
+        event.begin();
+        boolean more = scanCluster(clusterNumber, longName, entry -> {
+            entries[0]++;
+            visitor.accept(entry);
+        });
+        event.end();
+        stats.dirParsed(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.cluster = clusterNumber;
+            event.entries = entries[0];
+            event.commit();
+        }
+        return more;
+    }
+
+    private boolean scanCluster(long clusterNumber, LongName longName, Consumer<DirEntry> visitor) throws IOException {
+        ByteBuffer cluster = readClusterBuffer(clusterNumber);
+        DirEntry cursor = new DirEntry(cluster, 0);
+        for (int entryNumber = 0; entryNumber < entriesPerCluster; entryNumber++) {
+            cursor.moveTo(cluster, entryNumber*bytesPerEntry);
+            if (cursor.isEndOfDir()) return false; //No allocated entries after this one.
+            if (cursor.isFree()) {
+                longName.reset(); //A deleted entry breaks any sequence it interrupts.
+            } else if (cursor.isLongNameEntry()) {
+                longName.accept(cluster, entryNumber*bytesPerEntry);
+            } else if (cursor.isParsable()) {
+                visitor.accept(cursor.setLongName(longName.take(cluster, entryNumber*bytesPerEntry)));
+            } else {
+                longName.reset();
+            }
+        }
+        return true;
+    }
+
+    protected ByteBuffer parseClusterAsFile (long clusterNumber) throws IOException {
+        ByteBuffer cluster = readClusterBuffer(clusterNumber);
+        return cluster;
+    }
+
+    //Copy of the cluster, safe to keep and modify.
+    protected byte[] readClusterBytes(long clusterNumber) throws IOException {
+        byte[] cluster = new byte[bytesPerCluster];
+        readClusterBuffer(clusterNumber).get(0, cluster);
+        return cluster;
+    }
+
+    //Read-only view of the cluster, from the cluster cache when it is enabled.
+    protected ByteBuffer readClusterBuffer(long clusterNumber) throws IOException {
+        if (stats == null) return loadCluster(clusterNumber);
+        Stats.ClusterReadEvent event = new Stats.ClusterReadEvent();
+        event.begin();
+        ByteBuffer cluster = loadCluster(clusterNumber);
+        event.end();
+        stats.clusterRead();
+        if (event.shouldCommit()) {
+            event.cluster = clusterNumber;
+            event.bytes = bytesPerCluster;
+            event.commit();
+        }
+        return cluster;
+    }
+
+    private ByteBuffer loadCluster(long clusterNumber) throws IOException {
+        if (clusterCache != null) return clusterCache.get(clusterNumber);
+        return readClusterFromStorage(clusterNumber);
+    }
+
+    //Sliced straight out of the mapping when the image is mapped. Prefetched clusters are taken from the read-ahead instead.
+    protected ByteBuffer readClusterFromStorage(long clusterNumber) throws IOException {
+        if (readAhead != null) {
+            ByteBuffer prefetched = readAhead.take(clusterNumber);
+            if (prefetched != null) return prefetched;
+        }
+        return readClustersFromStorage(clusterNumber, 1);
+    }
+
+    //count contiguous clusters with one storage access.
+    protected ByteBuffer readClustersFromStorage(long clusterNumber, int count) throws IOException {
+        return storage.buffer(clusterOffset(clusterNumber), count*bytesPerCluster);
+    }
+
+    protected long clusterOffset(long clusterNumber) {
+        if (clusterNumber == 0) return cluster02Offset; //per MS spec pg. 25, references to root entry are uniquely 0
+        return cluster00Offset + (long)bytesPerCluster*clusterNumber;
+    }
+
+    //Number of clusters in the chain starting at firstCluster, walked straight through the FAT unless the sidecar index has it.
+    protected long chainLength(long firstCluster) throws IOException {
+        SidecarIndex index = sidecarIndex;
+        ExtentMap indexed = index == null ? null : index.extentsOf(firstCluster);
+        if (indexed != null) return indexed.getClusterCount();
+        long length = 0;
+        for (long clusterNumber = firstCluster; continuesInFAT(clusterNumber); clusterNumber = FAT.get(clusterNumber)) {
+            if (++length > FAT.size()) throw new IOException("Cluster chain starting at " + printHex(firstCluster) + " loops");
+        }
+        return length;
+    }
+
+    //Conveience method for parseBytesToNumeric(readBytes(offset, bytes))
+    protected long readNumeric(long offset, int bytes) throws IOException {
+        return parseBytesToNumeric(readBytes(offset, bytes));
+    }
+
+    //Read array of size bytes at offset.
+    protected byte[] readBytes (long offset, int bytes) throws IOException {
+        return storage.readBytes(offset, bytes);
+    }
+}
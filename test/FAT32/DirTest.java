@@ -0,0 +1,70 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+//The open addressing name index of Dir.
+class DirTest {
+    @TempDir
+    Path dir;
+
+    private static DirEntry entry(String shortName, String longName) {
+        byte[] raw = new byte[Volume.bytesPerEntry];
+        Arrays.fill(raw, 0, 11, (byte)' ');
+        byte[] name = shortName.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, raw, 0, name.length);
+        raw[11] = (byte)ATTR.ATTR_ARCHIVE.bitmask;
+        return new DirEntry(raw).setLongName(longName);
+    }
+
+    private static Dir dir(DirEntry... entries) {
+        return new Dir(5, List.of(entries), List.of(Volume.rootDirName, "D"));
+    }
+
+    //Every entry of a generated root is found by its 8.3 name and by its long name in any case.
+    @Test
+    void generatedNamesAreFoundByBothKeys() throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", "300", "sizes", "0", "long-names", "true")));
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            Dir root = volume.getRootDir();
+            assertEquals(300, root.getEntries().size());
+            for (DirEntry entry : root.getEntries()) {
+                assertSame(entry, root.entryWithName(entry.getDIR_NameString()));
+                assertSame(entry, root.entryWithName(LongName.keyOf(entry.getLongName())));
+            }
+            assertFalse(root.contains("FILE_0000000300.DATA"));
+            assertFalse(root.contains("F000012C.DAT"));
+            assertFalse(root.contains("file_0000000001.data"), "Keys are case-folded by the caller");
+        }
+    }
+
+    //"A.BB" and "A.C#" have the same String.hashCode, so they start probing at the same slot.
+    @Test
+    void collidingNamesAreBothFound() {
+        assertEquals("A.BB".hashCode(), "A.C#".hashCode());
+        DirEntry bb = entry("A       BB", null), c = entry("A       C#", null);
+        Dir dir = dir(bb, c);
+        assertSame(bb, dir.entryWithName("A.BB"));
+        assertSame(c, dir.entryWithName("A.C#"));
+        assertFalse(dir.contains("A.DB"));
+    }
+
+    //An entry is found by either key. When a later entry's 8.3 name equals an earlier long key, the earlier entry wins, as a linear scan would.
+    @Test
+    void shortAndLongKeys() {
+        DirEntry readme = entry("READM~1 TXT", "Readme.txt");
+        DirEntry duplicate = entry("README  TXT", null);
+        Dir dir = dir(readme, duplicate);
+        assertSame(readme, dir.entryWithName("READM~1.TXT"));
+        assertSame(readme, dir.entryWithName("README.TXT"));
+        assertFalse(dir.contains("Readme.txt"));
+        assertEquals(new TreeSet<>(List.of("Readme.txt", "README.TXT")), dir.getNames());
+        assertThrows(IllegalArgumentException.class, () -> dir.entryWithName("MISSING.TXT"));
+    }
+}
@@ -0,0 +1,43 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+class DiskUsageTest {
+    @TempDir
+    Path dir;
+
+    //A directory holding an entry that points back at itself is entered once, not forked without end.
+    @Test
+    void selfReferencingDirectoryIsWalkedOnce() throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "1", "files", "4")));
+        long subdir;
+        long offset;
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            subdir = volume.getRootDir().entryWithName("D0000001").getNextClusterNumber();
+            offset = volume.clusterOffset(subdir) + 2*Volume.bytesPerEntry; //The first entry after . and ..
+        }
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer entry = ByteBuffer.allocate(Volume.bytesPerEntry).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(entry, offset);
+            entry.put(11, (byte)ATTR.ATTR_DIRECTORY.bitmask);
+            entry.putShort(20, (short)(subdir >>> 16));
+            entry.putShort(26, (short)subdir);
+            entry.putInt(28, 0);
+            channel.write(entry.flip(), offset);
+        }
+
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            DiskUsage usage = DiskUsage.of(volume, volume.getRootCluster());
+            assertEquals(2, usage.getDirectories());
+            assertEquals(3, usage.getFiles());
+        }
+    }
+}
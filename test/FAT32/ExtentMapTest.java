@@ -0,0 +1,80 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExtentMapTest {
+    @TempDir
+    Path dir;
+
+    private Path image(String fragmentation) throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", "3",
+            "sizes", "5000", "fragmentation", fragmentation)));
+        return image;
+    }
+
+    //Every index maps to the cluster a walk of the chain reaches, whether the chain is one run, runs with gaps, or single clusters.
+    @Test
+    void clusterAtMatchesTheChain() throws IOException {
+        for (String fragmentation : new String[] {"none", "gap:3", "interleave:3"}) {
+            try (Volume volume = Volume.open(image(fragmentation).toString(), Map.of())) {
+                for (DirEntry entry : volume.getRootDir().getEntries()) {
+                    ExtentMap extents = new ExtentMap(volume.getFAT(), entry.getNextClusterNumber());
+                    long index = 0;
+                    for (long clusterNumber = entry.getNextClusterNumber(); continuesInFAT(clusterNumber); clusterNumber = volume.getFAT().get(clusterNumber)) {
+                        assertEquals(clusterNumber, extents.clusterAt(index), fragmentation + ": index " + index);
+                        index++;
+                    }
+                    assertEquals(10, index);
+                    assertEquals(index, extents.getClusterCount());
+                    assertEquals(fragmentation.equals("none") ? 1 : 10, extents.getExtentCount(), fragmentation);
+                    assertEquals(-1, extents.clusterAt(index));
+                    assertEquals(-1, extents.clusterAt(-1));
+                }
+            }
+            Files.delete(dir.resolve("test.img"));
+        }
+    }
+
+    @Test
+    void extentOfStoredExtents() {
+        ExtentMap extents = new ExtentMap(100, new long[] {100, 200, 50}, new long[] {3, 1, 4});
+        assertEquals(8, extents.getClusterCount());
+        long[] expected = {100, 101, 102, 200, 50, 51, 52, 53};
+        int[] extentOf = {0, 0, 0, 1, 2, 2, 2, 2};
+        for (int index = 0; index < expected.length; index++) {
+            assertEquals(expected[index], extents.clusterAt(index));
+            assertEquals(extentOf[index], extents.extentOf(index));
+        }
+        assertEquals(-1, extents.extentOf(8));
+        assertEquals(4, extents.getLength(2));
+    }
+
+    //A chain whose last cluster links back to its first is reported, not followed forever.
+    @Test
+    void loopingChainIsRejected() throws IOException {
+        Path image = image("none");
+        long first, last;
+        int FATOffset;
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            first = volume.getRootDir().getEntries().get(0).getNextClusterNumber();
+            last = first + 9;
+            FATOffset = volume.FATOffset;
+        }
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.WRITE)) {
+            ByteBuffer link = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, (int)first);
+            channel.write(link, FATOffset + last*4);
+        }
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            IOException e = assertThrows(IOException.class, () -> new ExtentMap(volume.getFAT(), first));
+            assertTrue(e.getMessage().contains("loops"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExtractionTest {
+    private static final int[] CHAR_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+
+    @TempDir
+    Path dir;
+
+    //A directory whose long name is ".." must not be extracted next to its parent. It falls back to its 8.3 name.
+    @Test
+    void longNameCannotLeaveTheHostDirectory() throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "1", "files", "4", "long-names", "true")));
+        renameDirectoryToDotDot(image);
+
+        Path inner = dir.resolve("out").resolve("inner");
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            Extraction extraction = Extraction.run(volume, volume.getRootDir().getEntries(), inner, 2);
+            assertEquals(4, extraction.getFiles());
+        }
+        try (var escaped = Files.list(dir.resolve("out"))) {
+            assertEquals(List.of(inner), escaped.toList());
+        }
+        assertTrue(Files.isRegularFile(inner.resolve("D0000001").resolve("file_0000000001.data")));
+    }
+
+    //Rewrites the two LFN entries of the root's directory entry into one holding "..", keeping the checksum.
+    private static void renameDirectoryToDotDot(Path image) throws IOException {
+        long offset;
+        int bytesPerCluster;
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            offset = volume.clusterOffset(volume.getRootCluster());
+            bytesPerCluster = volume.getBytesPerCluster();
+        }
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer cluster = ByteBuffer.allocate(bytesPerCluster).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(cluster, offset);
+            for (int entry = 2; entry < bytesPerCluster / Volume.bytesPerEntry; entry++) {
+                int at = entry * Volume.bytesPerEntry;
+                if (cluster.get(at + 11) != ATTR.ATTR_DIRECTORY.bitmask) continue;
+                int lfn = at - Volume.bytesPerEntry;
+                cluster.put(lfn - Volume.bytesPerEntry, (byte)0xE5);
+                cluster.put(lfn, (byte)0x41);
+                for (int i = 0; i < CHAR_OFFSETS.length; i++) cluster.putChar(lfn + CHAR_OFFSETS[i], i < 2 ? '.' : i == 2 ? (char)0 : (char)0xFFFF);
+                channel.write(cluster.flip(), offset);
+                return;
+            }
+        }
+        fail("No directory entry in the root");
+    }
+}
@@ -0,0 +1,119 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+//Three files of 10 clusters each with 2 free clusters after every cluster but their last, so the free space is runs of 2
+//between file clusters and one long run after the files.
+class FreeSpaceTest {
+    @TempDir
+    Path dir;
+
+    private ImageGenerator generator;
+    private Volume volume;
+    private FreeSpace space;
+    private long fileStart; //First cluster of the first file.
+
+    @BeforeEach
+    void scan() throws IOException {
+        Path image = dir.resolve("test.img");
+        generator = ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", "3",
+            "sizes", "5000", "fragmentation", "gap:2")));
+        volume = Volume.open(image.toString(), Map.of());
+        space = FreeSpace.scan(volume);
+        fileStart = volume.getRootDir().getEntries().get(0).getNextClusterNumber();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        volume.close();
+    }
+
+    private void assertUsed(ExtentMap extents) {
+        for (long index = 0; index < extents.getClusterCount(); index++) assertFalse(space.isFree(extents.clusterAt(index)));
+    }
+
+    @Test
+    void scanFindsFreeClustersAndTheLargestRun() {
+        assertEquals(generator.getUsedClusters(), space.getUsedClusters());
+        assertEquals(volume.getClusterLimit() - 2 - generator.getUsedClusters(), space.getFreeClusters());
+        assertFalse(space.isFree(fileStart));
+        assertTrue(space.isFree(fileStart + 1));
+        assertTrue(space.isFree(fileStart + 2));
+        assertFalse(space.isFree(fileStart + 3));
+        assertEquals(fileStart + 1, space.nextFree(fileStart));
+        assertEquals(fileStart + 3, space.nextUsed(fileStart + 1));
+
+        long start = space.getLargestRunStart();
+        assertFalse(space.isFree(start - 1));
+        assertEquals(volume.getClusterLimit(), space.nextUsed(start));
+        assertEquals(volume.getClusterLimit() - start, space.getLargestRunLength());
+    }
+
+    @Test
+    void allocateTakesTheRunAtTheHintWhenItFits() throws IOException {
+        long free = space.getFreeClusters();
+        ExtentMap extents = space.allocate(2, fileStart + 1);
+        assertEquals(1, extents.getExtentCount());
+        assertEquals(fileStart + 1, extents.getStart(0));
+        assertUsed(extents);
+        assertEquals(free - 2, space.getFreeClusters());
+    }
+
+    @Test
+    void allocateFallsBackToTheLargestRun() throws IOException {
+        long largest = space.getLargestRunStart();
+        ExtentMap extents = space.allocate(3, fileStart + 1); //Only 2 free at the hint.
+        assertEquals(1, extents.getExtentCount());
+        assertEquals(largest, extents.getStart(0));
+        assertEquals(largest + 3, space.getLargestRunStart());
+        assertEquals(volume.getClusterLimit() - largest - 3, space.getLargestRunLength());
+    }
+
+    //With the long run gone, 5 clusters come from the fewest gaps that hold them, in cluster order.
+    @Test
+    void allocateSpansTheFewestRuns() throws IOException {
+        space.allocate(space.getLargestRunLength(), space.getLargestRunStart());
+        assertEquals(2, space.getLargestRunLength());
+        long free = space.getFreeClusters();
+        ExtentMap extents = space.allocate(5, 0);
+        assertEquals(5, extents.getClusterCount());
+        assertEquals(3, extents.getExtentCount());
+        for (int extent = 1; extent < extents.getExtentCount(); extent++) assertTrue(extents.getStart(extent - 1) < extents.getStart(extent));
+        assertUsed(extents);
+        assertEquals(free - 5, space.getFreeClusters());
+    }
+
+    //The largest run, found again only when an allocation cut into it, matches a walk of the runs after every allocation.
+    @Test
+    void largestRunFollowsAllocations() throws IOException {
+        long hint = 0;
+        for (long count : new long[] {1, 2, 100, 2, 5000, 1}) {
+            ExtentMap extents = space.allocate(count, hint);
+            hint = extents.clusterAt(count - 1) + 1;
+            long largestStart = -1, largestLength = 0;
+            for (long start = space.nextFree(2); start >= 0; start = space.nextFree(space.nextUsed(start))) {
+                long length = space.nextUsed(start) - start;
+                if (length > largestLength) {
+                    largestStart = start;
+                    largestLength = length;
+                }
+            }
+            assertEquals(largestLength, space.getLargestRunLength(), "after allocating " + count);
+            assertEquals(largestStart, space.getLargestRunStart(), "after allocating " + count);
+        }
+    }
+
+    @Test
+    void allocateMoreThanIsFree() throws IOException {
+        long free = space.getFreeClusters();
+        assertThrows(IOException.class, () -> space.allocate(free + 1, 0));
+        assertEquals(free, space.allocate(free, 0).getClusterCount());
+        assertEquals(0, space.getFreeClusters());
+        assertEquals(0, space.getLargestRunLength());
+    }
+}
@@ -0,0 +1,83 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+//put into a root directory of one 512 byte cluster (16 entries), holding the volume label and some generated files.
+class IngestTest {
+    @TempDir
+    Path dir;
+
+    private Path image(long files) throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", String.valueOf(files))));
+        return image;
+    }
+
+    private Path hostFile(int bytes) throws IOException {
+        byte[] data = new byte[bytes];
+        new Random(bytes).nextBytes(data);
+        return Files.write(dir.resolve("host.bin"), data);
+    }
+
+    //The long name takes 3 entries. With 1 or 2 free at the end of the cluster, the entries span it and the added cluster.
+    @Test
+    void longNameSpansTheClusterTheDirectoryGrowsBy() throws IOException {
+        for (long files : new long[] {13, 14}) {
+            Path image = image(files);
+            Path host = hostFile(100000);
+            try (Volume volume = Volume.open(image.toString(), Map.of("rw", "true"))) {
+                Ingest.put(volume, volume.getRootDir(), "a_long_file_name.bin", host);
+            }
+            try (Volume volume = Volume.open(image.toString(), Map.of())) {
+                Dir root = volume.getRootDir();
+                assertTrue(root.contains("A_LONG_FILE_NAME.BIN"), files + " files: new entry not found behind the old end of the directory");
+                DirEntry entry = root.entryWithName("A_LONG_FILE_NAME.BIN");
+                assertEquals("a_long_file_name.bin", entry.getLongName());
+                assertArrayEquals(Files.readAllBytes(host), volume.fileAsByteArray(entry));
+                assertEquals(files + 1, root.getEntries().size());
+                assertEquals(0, ConsistencyCheck.run(volume).getProblemCount(), files + " files: check found problems");
+            }
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    void shortNameFillsTheLastFreeEntry() throws IOException {
+        Path image = image(14);
+        Path host = hostFile(1000);
+        try (Volume volume = Volume.open(image.toString(), Map.of("rw", "true"))) {
+            Ingest ingest = Ingest.put(volume, volume.getRootDir(), "SHORT.BIN", host);
+            assertFalse(ingest.toString().contains("grew"));
+        }
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            assertTrue(volume.getRootDir().contains("SHORT.BIN"));
+            assertEquals(0, ConsistencyCheck.run(volume).getProblemCount());
+        }
+    }
+
+    //A valid 8.3 name without an extension takes one entry and no ~N alias.
+    @Test
+    void shortNameWithoutExtension() throws IOException {
+        Path image = image(13);
+        Path host = hostFile(1000);
+        try (Volume volume = Volume.open(image.toString(), Map.of("rw", "true"))) {
+            Ingest.put(volume, volume.getRootDir(), "README", host);
+            Ingest.put(volume, volume.getRootDir(), "readme.md", host);
+            assertThrows(IOException.class, () -> Ingest.put(volume, volume.getRootDir(), "readme", host));
+        }
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            Dir root = volume.getRootDir();
+            DirEntry readme = root.entryWithName("README");
+            assertEquals("README", readme.getDIR_NameString());
+            assertNull(readme.getLongName());
+            assertArrayEquals(Files.readAllBytes(host), volume.fileAsByteArray(readme));
+            assertEquals("readme.md", root.entryWithName("README.MD").getLongName());
+            assertEquals(0, ConsistencyCheck.run(volume).getProblemCount());
+        }
+    }
+}
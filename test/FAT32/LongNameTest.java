@@ -0,0 +1,114 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+//The root of the generated image holds the volume label, then per file two LFN entries and the short entry.
+class LongNameTest {
+    private static final int FILES = 4;
+    private static final int FIRST_LFN = 1; //Entry index of the first file's 0x40 LFN entry.
+
+    @TempDir
+    Path dir;
+
+    private Path image;
+    private long rootOffset;
+
+    @BeforeEach
+    void generate() throws IOException {
+        image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", String.valueOf(FILES),
+            "sizes", "0", "long-names", "true")));
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            rootOffset = volume.clusterOffset(volume.getRootCluster());
+        }
+    }
+
+    //8.3 name -> long name, null where the entry has none.
+    private Map<String, String> longNames() throws IOException {
+        Map<String, String> names = new TreeMap<>();
+        try (Volume volume = Volume.open(image.toString(), Map.of())) {
+            for (DirEntry entry : volume.getRootDir().getEntries()) names.put(entry.getDIR_NameString(), entry.getLongName());
+        }
+        assertEquals(FILES, names.size());
+        return names;
+    }
+
+    private static String expectedLongName(String shortName) {
+        return String.format(Locale.ROOT, "file_%010d.data", Long.parseLong(shortName.substring(1, 8), 16));
+    }
+
+    private void patch(int entry, int at, byte value) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {value}), rootOffset + entry*Volume.bytesPerEntry + at);
+        }
+    }
+
+    private void swap(int entry, int other) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer a = ByteBuffer.allocate(Volume.bytesPerEntry), b = ByteBuffer.allocate(Volume.bytesPerEntry);
+            channel.read(a, rootOffset + entry*Volume.bytesPerEntry);
+            channel.read(b, rootOffset + other*Volume.bytesPerEntry);
+            channel.write(a.flip(), rootOffset + other*Volume.bytesPerEntry);
+            channel.write(b.flip(), rootOffset + entry*Volume.bytesPerEntry);
+        }
+    }
+
+    //Only the first file loses its long name, the sequences after it are read as before.
+    private void assertOnlyFirstDropped(Map<String, String> names) {
+        int dropped = 0;
+        for (Map.Entry<String, String> name : names.entrySet()) {
+            if (name.getValue() == null) dropped++;
+            else assertEquals(expectedLongName(name.getKey()), name.getValue());
+        }
+        assertEquals(1, dropped, names.toString());
+    }
+
+    @Test
+    void generatedSequencesAreRead() throws IOException {
+        for (Map.Entry<String, String> name : longNames().entrySet()) assertEquals(expectedLongName(name.getKey()), name.getValue());
+    }
+
+    @Test
+    void checksumMismatchDropsTheLongName() throws IOException {
+        patch(FIRST_LFN + 2, 7, (byte)'X'); //A character of the short name, so its checksum no longer matches.
+        assertOnlyFirstDropped(longNames());
+    }
+
+    @Test
+    void outOfOrderSequenceIsDropped() throws IOException {
+        swap(FIRST_LFN, FIRST_LFN + 1);
+        assertOnlyFirstDropped(longNames());
+    }
+
+    @Test
+    void orphanedPartIsDropped() throws IOException {
+        patch(FIRST_LFN, 0, (byte)0xE5); //The 0x40 entry is freed, leaving ordinal 1 without its start.
+        assertOnlyFirstDropped(longNames());
+    }
+
+    //Written and read back without an image: a name filling its last entry exactly (no terminator), the longest name, non-ASCII characters.
+    @Test
+    void writeThenAccept() {
+        for (String name : new String[] {"exactly13char", "x".repeat(255), "\u00DCn\u00EFc\u00F6d\u00E9 name.txt"}) {
+            int count = LongName.entryCount(name);
+            ByteBuffer buf = ByteBuffer.allocate((count + 1) * Volume.bytesPerEntry).order(ByteOrder.LITTLE_ENDIAN);
+            int shortEntry = count * Volume.bytesPerEntry;
+            for (int i = 0; i < 11; i++) buf.put(shortEntry + i, (byte)"NAME~1  TXT".charAt(i));
+            LongName.write(buf, 0, name, LongName.checksumOf(buf, shortEntry));
+            LongName longName = new LongName();
+            for (int entry = 0; entry < count; entry++) {
+                assertTrue(LongName.isLongNameEntry(buf, entry * Volume.bytesPerEntry));
+                longName.accept(buf, entry * Volume.bytesPerEntry);
+            }
+            assertEquals(name, longName.take(buf, shortEntry));
+            assertNull(longName.take(buf, shortEntry), "take resets");
+        }
+    }
+}
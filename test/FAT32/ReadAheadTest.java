@@ -0,0 +1,56 @@
+package FAT32;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.*;
+
+//A chain of 16 clusters from 100, read through a loader that only counts.
+class ReadAheadTest {
+    private static final int BYTES_PER_CLUSTER = 512;
+
+    private AtomicInteger loads = new AtomicInteger();
+    private ReadAhead readAhead = new ReadAhead(8, BYTES_PER_CLUSTER, (clusterNumber, count) -> {
+        loads.incrementAndGet();
+        return ByteBuffer.allocate(count * BYTES_PER_CLUSTER);
+    }, null);
+    private ExtentMap extents = new ExtentMap(100, new long[] {100}, new long[] {16});
+
+    @AfterEach
+    void close() {
+        readAhead.close();
+    }
+
+    @Test
+    void oneOffReadAtTheStartDoesNotPrefetch() {
+        readAhead.access(extents, 0);
+        assertNull(readAhead.take(101));
+        readAhead.access(extents, 1);
+        assertNull(readAhead.take(102));
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    void secondSequentialAccessStartsTheWindow() {
+        for (int index = 0; index <= 2; index++) readAhead.access(extents, index);
+        assertNotNull(readAhead.take(103));
+        assertNotNull(readAhead.take(104));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void seekRestartsTheCount() {
+        for (int index = 0; index <= 2; index++) readAhead.access(extents, index);
+        readAhead.access(extents, 10);
+        readAhead.access(extents, 11);
+        assertNull(readAhead.take(12 + 100));
+    }
+
+    @Test
+    void discardAllDropsPrefetchedClusters() {
+        for (int index = 0; index <= 2; index++) readAhead.access(extents, index);
+        readAhead.discardAll();
+        assertNull(readAhead.take(103));
+        assertTrue(readAhead.toString().contains(" 0 streams"), readAhead.toString());
+    }
+}
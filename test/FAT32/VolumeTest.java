@@ -0,0 +1,58 @@
+package FAT32;
+import static FAT32.Util.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+//Ranged reads on 512 byte clusters, with two files written a cluster at a time each so neither chain is contiguous.
+class VolumeTest {
+    private static final int FILE_BYTES = 3000; //5 full clusters and 440 bytes of a sixth.
+
+    @TempDir
+    Path dir;
+
+    private Volume volume;
+
+    @BeforeEach
+    void open() throws IOException {
+        Path image = dir.resolve("test.img");
+        ImageGenerator.write(image, ImageGenerator.Spec.parse(Map.of("size", "64M", "sec-per-clus", "1", "dirs", "0", "files", "2",
+            "sizes", String.valueOf(FILE_BYTES), "fragmentation", "interleave:2")));
+        volume = Volume.open(image.toString(), Map.of());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        volume.close();
+    }
+
+    private static long fileNumber(DirEntry entry) {
+        return Long.parseLong(entry.getDIR_NameString().substring(1, 8), 16);
+    }
+
+    private static void assertPattern(long file, long offset, byte[] bytes) {
+        assertNotNull(bytes, "read at " + offset + " returned null");
+        for (int i = 0; i < bytes.length; i++) assertEquals(ImageGenerator.patternByte(file, offset + i), bytes[i], "byte " + (offset + i));
+    }
+
+    @Test
+    void rangesWithinAndAcrossClusters() throws IOException {
+        for (DirEntry entry : volume.getRootDir().getEntries()) {
+            long file = fileNumber(entry);
+            long[][] ranges = {{0, 1}, {0, 512}, {511, 2}, {500, 30}, {512, 512}, {100, 1500}, {2559, 441}, {0, FILE_BYTES}, {FILE_BYTES - 1, 1}};
+            for (long[] range : ranges) assertPattern(file, range[0], volume.fileAsByteArray(entry, range[0], (int)range[1]));
+            assertArrayEquals(volume.fileAsByteArray(entry), volume.fileAsByteArray(entry, 0, FILE_BYTES));
+        }
+    }
+
+    @Test
+    void rangesPastTheEndOfTheFile() throws IOException {
+        DirEntry entry = volume.getRootDir().getEntries().get(0);
+        assertNull(volume.fileAsByteArray(entry, FILE_BYTES - 10, 11));
+        assertNull(volume.fileAsByteArray(entry, FILE_BYTES, 1));
+        assertArrayEquals(new byte[0], volume.fileAsByteArray(entry, FILE_BYTES, 0));
+    }
+}